@@ -0,0 +1,81 @@
+package com.criteo.nosql.cassandra.exporter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.Optional;
+
+/**
+ * Entry point of the optional -javaagent mode, i.e -javaagent:cassandra_exporter.jar=/path/to/config.yml
+ * <p>
+ * The exporter runs inside the Cassandra JVM and reads the platform MBean server directly, without any RMI round trip.
+ * Scraping happens on a single low priority daemon thread, whose CPU usage is capped by agentMaxCpuPercent.
+ * The http endpoints are the same as the standalone ones.
+ */
+public final class Agent {
+    private static final Logger logger = LoggerFactory.getLogger(Agent.class);
+
+    private Agent() {
+    }
+
+    /**
+     * Start the exporter, or only log why it cannot start: whatever happens, Cassandra must not be prevented from starting
+     * because of the exporter, i.e by an invalid rule or a listen port already in use
+     */
+    public static void premain(String args, Instrumentation instrumentation) {
+        String configPath = args == null || args.isEmpty() ? Config.DEFAULT_PATH : args;
+        ExpositionServer server = null;
+        try {
+            Optional<Config> cfg = Config.fromFile(configPath);
+            if (!cfg.isPresent()) {
+                logger.error("Cannot parse config file present at {}, the exporter agent is disabled", configPath);
+                return;
+            }
+
+            JmxScraper scrapper = Main.newScraper(cfg.get());
+            server = Main.startServer(cfg.get(), scrapper, true);
+            ConfigWatcher.start(Paths.get(configPath), scrapper::reload);
+
+            Thread thread = new Thread(() -> scrap(scrapper, new CpuThrottle(cfg.get().getAgentMaxCpuPercent())), "cassandra-exporter");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+        } catch (Throwable t) {
+            logger.error("Cannot start the exporter with the config file present at {}, the exporter agent is disabled", configPath, t);
+            if (server != null) server.stop();
+        }
+    }
+
+    private static void scrap(JmxScraper scrapper, CpuThrottle throttle) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            // Cassandra registers its MBeans while starting, so the node info is not available right away
+            ObjectName storageService = ObjectName.getInstance("org.apache.cassandra.db:type=StorageService");
+            while (!server.isRegistered(storageService)) {
+                Thread.sleep(1000);
+            }
+
+            for (; ; ) {
+                try {
+                    scrapper.run(server, true, Optional.of(throttle));
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    logger.error("Scrapper stopped due to uncaught exception", e);
+                }
+                Thread.sleep(1000);
+            }
+        } catch (InterruptedException e) {
+            logger.info("Exporter agent interrupted, stopping");
+        } catch (Exception e) {
+            logger.error("Exporter agent stopped due to uncaught exception", e);
+        } finally {
+            scrapper.close();
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package com.criteo.nosql.cassandra.exporter;
+
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Roll per table metrics up to their keyspace or to the whole node, as configured by the aggregation rules.
+ * <p>
+ * Each source metric owns a contribution to its rollup, resolved once when the scrap plan is compiled.
+ * Updating a source only applies the difference with its previous value, so rollups are never recomputed from scratch.
+ * EstimatedHistogram are merged bucket by bucket, so percentiles of the rollup are the real ones.
+ * <p>
+ * Rollups are named after their source with the table part removed, and the keyspace part replaced by
+ * {@value #ALL_KEYSPACES} for the whole node, as a keyspace name cannot contain a dash. Cassandra exports global
+ * metrics of all the tables under the bare metric name, i.e org:apache:cassandra:metrics:table:writelatency:count
+ */
+final class Aggregator {
+    private static final String[] TABLE_PATHS = {"org:apache:cassandra:metrics:table:", "org:apache:cassandra:metrics:columnfamily:"};
+    static final String ALL_KEYSPACES = "all-keyspaces";
+
+    private final List<Rule> rules;
+    private final Map<String, Contribution> contributions = new HashMap<>();
+    private final Map<String, Rollup> rollups = new HashMap<>();
+
+    Aggregator(List<Config.Aggregation> aggregations) {
+        this.rules = aggregations.stream().map(Rule::new).collect(toList());
+    }
+
+    /**
+     * Return the contribution of a per table metric to its rollup, according to the first matching rule
+     *
+     * @param metricName the metric name of the attribute, the one ending by :value for histograms
+     * @return the contribution, or null if the metric is not aggregated
+     */
+    Contribution contributionFor(String metricName) {
+        Contribution contribution = contributions.get(metricName);
+        if (contribution != null || rules.isEmpty()) {
+            return contribution;
+        }
+
+        TablePath tablePath = TablePath.parse(metricName);
+        if (tablePath == null) return null;
+
+        for (Rule rule : rules) {
+            if (rule.pattern.matcher(metricName).matches()) {
+                String rollupName = tablePath.path + (rule.byKeyspace ? tablePath.keyspace : ALL_KEYSPACES) + ":" + tablePath.rest;
+                return contribute(tablePath, rollupName, rule.byKeyspace ? tablePath.keyspace : "", "", rule.dropSource);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Make a per table metric contribute to the given rollup, creating it if needed
+     */
+    Contribution contribute(TablePath source, String rollupName, String rollupKeyspace, String rollupTable, boolean dropSource) {
+        Rollup rollup = rollups.computeIfAbsent(rollupName, name -> new Rollup(name, rollupKeyspace, rollupTable, source.metricName));
+        rollup.sources++;
+
+        Contribution contribution = new Contribution(source.metricName, rollup, source.keyspace, source.table, dropSource);
+        contributions.put(source.metricName, contribution);
+        return contribution;
+    }
+
+    /**
+     * Withdraw the contributions of the tables that don't exist anymore
+     *
+     * @return the rollups left without any contribution, that are not maintained anymore
+     */
+    List<Rollup> retain(Set<String> keyspaces, Set<String> tables) {
+        return withdrawIf(contribution -> !keyspaces.contains(contribution.keyspace) || !tables.contains(contribution.table));
+    }
+
+    /**
+     * Withdraw the contributions of the metrics that are not scraped anymore, once the scrap rules changed
+     *
+     * @return the rollups left without any contribution, that are not maintained anymore
+     */
+    List<Rollup> retainMetrics(Set<String> metricNames) {
+        return withdrawIf(contribution -> !metricNames.contains(contribution.metricName));
+    }
+
+    private List<Rollup> withdrawIf(Predicate<Contribution> gone) {
+        List<Rollup> removed = new ArrayList<>();
+        Iterator<Contribution> it = contributions.values().iterator();
+        while (it.hasNext()) {
+            Contribution contribution = it.next();
+            if (gone.test(contribution)) {
+                contribution.withdraw();
+                it.remove();
+                if (--contribution.rollup.sources == 0) {
+                    rollups.remove(contribution.rollup.metricName);
+                    removed.add(contribution.rollup);
+                }
+            }
+        }
+        return removed;
+    }
+
+    Collection<Rollup> rollups() {
+        return rollups.values();
+    }
+
+    /**
+     * Sum, or merged histogram, of all the metrics contributing to it
+     */
+    static final class Rollup {
+        final String metricName;
+        final String keyspace;
+        final String table;
+        double sum;
+        long[] buckets;
+        // Factor converting the bucket offsets to the unit of the percentiles, i.e from nanoseconds for timers
+        double unitFactor = 1.0;
+        boolean dirty;
+        int sources;
+        // Metric name of the first source, the rollup being exported as its other sources under a different name
+        final String sourceName;
+        // Metric names this rollup is exported as, left to the scraper to resolve
+        String[] exportedNames;
+
+        Rollup(String metricName, String keyspace, String table, String sourceName) {
+            this.metricName = metricName;
+            this.keyspace = keyspace;
+            this.table = table;
+            this.sourceName = sourceName;
+        }
+    }
+
+    static final class Contribution {
+        final String metricName;
+        final Rollup rollup;
+        final String keyspace;
+        final String table;
+        final boolean dropSource;
+        private double value;
+        private long[] buckets;
+
+        private Contribution(String metricName, Rollup rollup, String keyspace, String table, boolean dropSource) {
+            this.metricName = metricName;
+            this.rollup = rollup;
+            this.keyspace = keyspace;
+            this.table = table;
+            this.dropSource = dropSource;
+        }
+
+        void set(double newValue) {
+            // A NaN or an infinity, like the hit rate of a cache never read, would stick to the sum once added
+            if (!Double.isFinite(newValue)) newValue = 0;
+            if (newValue == value) return;
+            rollup.sum += newValue - value;
+            value = newValue;
+            rollup.dirty = true;
+        }
+
+        void set(long[] newBuckets) {
+            if (Arrays.equals(buckets, newBuckets)) return;
+            if (rollup.buckets == null) {
+                rollup.buckets = new long[newBuckets.length];
+            } else if (rollup.buckets.length < newBuckets.length) {
+                rollup.buckets = Arrays.copyOf(rollup.buckets, newBuckets.length);
+            }
+
+            for (int i = 0; i < newBuckets.length; i++) {
+                long previous = buckets != null && i < buckets.length ? buckets[i] : 0;
+                rollup.buckets[i] += newBuckets[i] - previous;
+            }
+            if (buckets != null) {
+                for (int i = newBuckets.length; i < buckets.length; i++) {
+                    rollup.buckets[i] -= buckets[i];
+                }
+            }
+            buckets = newBuckets.clone();
+            rollup.dirty = true;
+        }
+
+        void withdraw() {
+            set(0.0);
+            if (buckets != null) {
+                set(new long[0]);
+            }
+        }
+    }
+
+    /**
+     * Split of a per table metric name, i.e org:apache:cassandra:metrics:table:keyspace:table:rest
+     */
+    static final class TablePath {
+        final String metricName;
+        final String path;
+        final String keyspace;
+        final String table;
+        final String rest;
+
+        private TablePath(String metricName, String path, String keyspace, String table, String rest) {
+            this.metricName = metricName;
+            this.path = path;
+            this.keyspace = keyspace;
+            this.table = table;
+            this.rest = rest;
+        }
+
+        /**
+         * @return the split metric name, or null if it is not a per table metric
+         */
+        static TablePath parse(String metricName) {
+            for (String path : TABLE_PATHS) {
+                if (!metricName.startsWith(path)) continue;
+
+                int keyspacePos = metricName.indexOf(':', path.length());
+                int tablePos = keyspacePos < 0 ? -1 : metricName.indexOf(':', keyspacePos + 1);
+                if (tablePos < 0) return null;
+
+                return new TablePath(metricName, path, metricName.substring(path.length(), keyspacePos),
+                        metricName.substring(keyspacePos + 1, tablePos), metricName.substring(tablePos + 1));
+            }
+            return null;
+        }
+    }
+
+    private static final class Rule {
+        final Pattern pattern;
+        final boolean byKeyspace;
+        final boolean dropSource;
+
+        Rule(Config.Aggregation aggregation) {
+            this.pattern = Pattern.compile(aggregation.getMetrics());
+            switch (aggregation.getBy()) {
+                case "keyspace":
+                    this.byKeyspace = true;
+                    break;
+                case "cluster":
+                    this.byKeyspace = false;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown aggregation level " + aggregation.getBy() + " for " + aggregation.getMetrics() + ", expected keyspace or cluster");
+            }
+            this.dropSource = aggregation.getDropSource();
+        }
+    }
+}
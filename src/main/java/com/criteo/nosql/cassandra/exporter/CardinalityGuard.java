@@ -0,0 +1,314 @@
+package com.criteo.nosql.cassandra.exporter;
+
+import io.prometheus.client.Gauge;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Keep the number of per table series under the configured budgets.
+ * <p>
+ * When a budget is exceeded, only the most active tables keep their own series. The series of the other tables are
+ * folded, summed or merged for histograms, into a single "other" table.
+ * Tables are ranked by the growth of their activity metrics (read and write counts by default) since the previous ranking,
+ * which happens once per slowest scrap cycle or when the set of tables changes.
+ */
+final class CardinalityGuard {
+    private static final Logger logger = LoggerFactory.getLogger(CardinalityGuard.class);
+    static final String OTHER = "other";
+
+    private static final Gauge budgetSeries = Gauge.build()
+            .name("cassandra_exporter_budget_series")
+            .help("Number of per table series matching a budget")
+            .labelNames("budget")
+            .register();
+    private static final Gauge foldedTables = Gauge.build()
+            .name("cassandra_exporter_budget_folded_tables")
+            .help("Number of tables folded into the other table to respect a budget")
+            .labelNames("budget")
+            .register();
+    private static final Gauge foldedSeries = Gauge.build()
+            .name("cassandra_exporter_budget_folded_series")
+            .help("Number of per table series not exported to respect a budget")
+            .labelNames("budget")
+            .register();
+
+    private final List<Budget> budgets;
+    private final Map<String, Member> members = new HashMap<>();
+    private final Map<String, Activity> activities = new HashMap<>();
+    private final Aggregator others = new Aggregator(Collections.emptyList());
+    private boolean membersChanged;
+
+    CardinalityGuard(List<Config.SeriesBudget> seriesBudgets) {
+        this.budgets = IntStream.range(0, seriesBudgets.size()).mapToObj(i -> new Budget(seriesBudgets.get(i), i)).collect(toList());
+    }
+
+    /**
+     * Return the membership of a per table metric to the first matching budget
+     *
+     * @param metricName    the metric name of the attribute, the one ending by :value for histograms
+     * @param exportedNames the metric names of the series it is exported as
+     * @return the membership, or null if the metric is not under any budget
+     */
+    Member memberFor(String metricName, String[] exportedNames) {
+        Member member = members.get(metricName);
+        if (member != null || budgets.isEmpty()) {
+            return member;
+        }
+
+        Aggregator.TablePath tablePath = Aggregator.TablePath.parse(metricName);
+        if (tablePath == null) return null;
+
+        for (Budget budget : budgets) {
+            if (!budget.pattern.matcher(metricName).matches()) continue;
+
+            TableState state = budget.tableState(tablePath);
+            String otherName = tablePath.path + OTHER + ":" + OTHER + ":" + tablePath.rest;
+            member = new Member(metricName, exportedNames, state, others.contribute(tablePath, otherName, "", OTHER, true));
+            state.members.add(member);
+            state.series += exportedNames.length;
+            budget.series += exportedNames.length;
+            members.put(metricName, member);
+            membersChanged = true;
+            return member;
+        }
+        return null;
+    }
+
+    /**
+     * Return the activity handle of a per table metric used to rank the tables of the budgets
+     *
+     * @return the activity, or null if the metric is not used to rank any table
+     */
+    Activity activityFor(String metricName) {
+        Activity activity = activities.get(metricName);
+        if (activity != null || budgets.isEmpty()) {
+            return activity;
+        }
+
+        Aggregator.TablePath tablePath = Aggregator.TablePath.parse(metricName);
+        if (tablePath == null) return null;
+
+        List<TableState> states = budgets.stream()
+                .filter(budget -> budget.rankBy.matcher(metricName).matches())
+                .map(budget -> budget.tableState(tablePath))
+                .collect(toList());
+        if (states.isEmpty()) return null;
+
+        activity = new Activity(states);
+        activities.put(metricName, activity);
+        return activity;
+    }
+
+    /**
+     * Forget the tables that don't exist anymore
+     *
+     * @return the other rollups that are not maintained anymore
+     */
+    List<Aggregator.Rollup> retain(Set<String> keyspaces, Set<String> tables) {
+        for (Budget budget : budgets) {
+            Iterator<TableState> it = budget.tables.values().iterator();
+            while (it.hasNext()) {
+                TableState state = it.next();
+                if (keyspaces.contains(state.keyspace) && tables.contains(state.table)) continue;
+
+                it.remove();
+                budget.series -= state.series;
+                state.members.forEach(member -> members.remove(member.metricName));
+                membersChanged |= !state.members.isEmpty();
+            }
+        }
+        activities.values().removeIf(activity -> activity.states.stream().anyMatch(state -> !keyspaces.contains(state.keyspace) || !tables.contains(state.table)));
+        return others.retain(keyspaces, tables);
+    }
+
+    /**
+     * Forget the metrics that are not scraped anymore, once the scrap rules changed
+     *
+     * @return the other rollups that are not maintained anymore
+     */
+    List<Aggregator.Rollup> retainMetrics(Set<String> metricNames) {
+        Iterator<Member> it = members.values().iterator();
+        while (it.hasNext()) {
+            Member member = it.next();
+            if (metricNames.contains(member.metricName)) continue;
+
+            it.remove();
+            member.state.members.remove(member);
+            member.state.series -= member.exportedNames.length;
+            member.state.budget.series -= member.exportedNames.length;
+            membersChanged = true;
+        }
+        activities.keySet().retainAll(metricNames);
+        return others.retainMetrics(metricNames);
+    }
+
+    boolean needsRanking() {
+        return membersChanged;
+    }
+
+    /**
+     * Rank the tables of each budget by activity and decide which ones are folded
+     *
+     * @return the members of the tables that have just been folded, whose own series must be removed
+     */
+    List<Member> rank() {
+        membersChanged = false;
+        List<Member> newlyFolded = new ArrayList<>();
+
+        for (Budget budget : budgets) {
+            List<TableState> states = new ArrayList<>(budget.tables.values());
+            states.forEach(state -> {
+                state.rank = state.activity - state.activityAtLastRank;
+                state.activityAtLastRank = state.activity;
+            });
+
+            // Keep room for the other table, which has at most as many series as the biggest table
+            int available = budget.maxSeries - states.stream().mapToInt(state -> state.series).max().orElse(0);
+            boolean fits = budget.series <= budget.maxSeries;
+            states.sort(Comparator.comparingDouble((TableState state) -> state.rank).reversed());
+
+            int kept = 0, folded = 0, dropped = 0;
+            for (TableState state : states) {
+                if (state.series == 0) continue;
+
+                boolean fold = !fits && (folded > 0 || kept + state.series > available);
+                if (fold) {
+                    folded++;
+                    dropped += state.series;
+                } else {
+                    kept += state.series;
+                }
+
+                if (fold == state.folded) continue;
+                state.folded = fold;
+                for (Member member : state.members) {
+                    if (fold) {
+                        newlyFolded.add(member);
+                    } else {
+                        member.other.withdraw();
+                    }
+                }
+            }
+
+            budgetSeries.labels(budget.name).set(budget.series);
+            foldedTables.labels(budget.name).set(folded);
+            foldedSeries.labels(budget.name).set(dropped);
+            if (folded > 0) {
+                logger.info("Budget {} of {} series exceeded with {} series, {} tables folded into the other table", budget.name, budget.maxSeries, budget.series, folded);
+            }
+        }
+        return newlyFolded;
+    }
+
+    Aggregator others() {
+        return others;
+    }
+
+    /**
+     * Series of a table under a budget, that are folded into the other table when the table is not active enough
+     */
+    static final class Member {
+        final String metricName;
+        final String[] exportedNames;
+        final String keyspace;
+        final String table;
+        private final TableState state;
+        private final Aggregator.Contribution other;
+
+        private Member(String metricName, String[] exportedNames, TableState state, Aggregator.Contribution other) {
+            this.metricName = metricName;
+            this.exportedNames = exportedNames;
+            this.keyspace = state.keyspace;
+            this.table = state.table;
+            this.state = state;
+            this.other = other;
+        }
+
+        /**
+         * @return True if the value went to the other table and must not be exported on its own
+         */
+        boolean fold(double value) {
+            if (!state.folded) return false;
+            other.set(value);
+            return true;
+        }
+
+        boolean fold(long[] buckets) {
+            if (!state.folded) return false;
+            other.set(buckets);
+            return true;
+        }
+
+        /**
+         * @param unitFactor factor converting the bucket offsets to the unit of the percentiles of the other table
+         */
+        void unitFactor(double unitFactor) {
+            other.rollup.unitFactor = unitFactor;
+        }
+    }
+
+    static final class Activity {
+        private final List<TableState> states;
+        private double value;
+
+        private Activity(List<TableState> states) {
+            this.states = states;
+        }
+
+        void set(double newValue) {
+            // Or the activity of the table would stay NaN for good
+            if (!Double.isFinite(newValue)) newValue = 0;
+            for (TableState state : states) {
+                state.activity += newValue - value;
+            }
+            value = newValue;
+        }
+    }
+
+    private static final class TableState {
+        final Budget budget;
+        final String keyspace;
+        final String table;
+        final List<Member> members = new ArrayList<>();
+        int series;
+        double activity;
+        double activityAtLastRank;
+        double rank;
+        boolean folded;
+
+        TableState(Budget budget, String keyspace, String table) {
+            this.budget = budget;
+            this.keyspace = keyspace;
+            this.table = table;
+        }
+    }
+
+    private static final class Budget {
+        final String name;
+        final Pattern pattern;
+        final int maxSeries;
+        final Pattern rankBy;
+        final Map<String, TableState> tables = new HashMap<>();
+        int series;
+
+        /**
+         * @param index position of the budget in the config, naming it when it has no name
+         */
+        Budget(Config.SeriesBudget budget, int index) {
+            this.name = budget.getName() != null ? budget.getName() : String.valueOf(index);
+            this.pattern = Pattern.compile(budget.getMetrics());
+            this.maxSeries = budget.getMaxSeries();
+            this.rankBy = Pattern.compile(budget.getRankBy());
+        }
+
+        TableState tableState(Aggregator.TablePath tablePath) {
+            return tables.computeIfAbsent(tablePath.keyspace + ":" + tablePath.table, key -> new TableState(this, tablePath.keyspace, tablePath.table));
+        }
+    }
+}
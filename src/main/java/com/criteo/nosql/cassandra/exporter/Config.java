@@ -6,6 +6,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
@@ -20,10 +22,22 @@ public final class Config {
     private boolean ssl;
     private int listenPort;
     private String listenAddress = "0.0.0.0";
+    private Http http;
     private String user;
     private String password;
     private SortedMap<Integer, List<String>> maxScrapFrequencyInSec;
     private Pattern additionalLabelsFromEnvvars;
+    private String snapshotPath;
+    private boolean snapshotValues = true;
+    private int snapshotIntervalInSec = 300;
+    private boolean countersOnly;
+    private boolean computeRates;
+    private boolean structuredLabels;
+    private int agentMaxCpuPercent = 5;
+    private List<Aggregation> aggregations;
+    private List<SeriesBudget> seriesBudgets;
+    private RemoteWrite remoteWrite;
+    private SampleBuffer sampleBuffer;
 
     public static Optional<Config> fromFile(String filePath) {
         Logger logger = LoggerFactory.getLogger(Config.class);
@@ -60,6 +74,10 @@ public final class Config {
         return listenPort;
     }
 
+    public Http getHttp() {
+        return http == null ? new Http() : http;
+    }
+
     public String getHost() {
         return host;
     }
@@ -72,6 +90,179 @@ public final class Config {
         return ssl;
     }
 
+    public Optional<Path> getSnapshotPath() {
+        return snapshotPath == null ? Optional.empty() : Optional.of(Paths.get(snapshotPath));
+    }
+
+    public boolean getSnapshotValues() {
+        return snapshotValues;
+    }
+
+    public int getSnapshotIntervalInSec() {
+        return snapshotIntervalInSec;
+    }
+
+    public boolean getCountersOnly() {
+        return countersOnly;
+    }
+
+    public boolean getComputeRates() {
+        return computeRates;
+    }
+
+    public boolean getStructuredLabels() {
+        return structuredLabels;
+    }
+
+    public int getAgentMaxCpuPercent() {
+        return agentMaxCpuPercent;
+    }
+
+    public List<Aggregation> getAggregations() {
+        return aggregations == null ? Collections.emptyList() : aggregations;
+    }
+
+    public List<SeriesBudget> getSeriesBudgets() {
+        return seriesBudgets == null ? Collections.emptyList() : seriesBudgets;
+    }
+
+    public Optional<RemoteWrite> getRemoteWrite() {
+        return remoteWrite == null || remoteWrite.url == null ? Optional.empty() : Optional.of(remoteWrite);
+    }
+
+    public Optional<SampleBuffer> getSampleBuffer() {
+        return sampleBuffer == null || sampleBuffer.retentionInSec <= 0 ? Optional.empty() : Optional.of(sampleBuffer);
+    }
+
     public Optional<Pattern> getAdditionalLabelsFromEnvvars() { return additionalLabelsFromEnvvars == null ? Optional.empty() : Optional.of(additionalLabelsFromEnvvars); }
-}
 
+    public static final class Aggregation {
+        private String metrics;
+        private String by = "keyspace";
+        private boolean dropSource;
+
+        public String getMetrics() {
+            return metrics;
+        }
+
+        public String getBy() {
+            return by;
+        }
+
+        public boolean getDropSource() {
+            return dropSource;
+        }
+    }
+
+    public static final class SeriesBudget {
+        private String name;
+        private String metrics;
+        private int maxSeries;
+        private String rankBy = "org:apache:cassandra:metrics:(table|columnfamily):[^:]+:[^:]+:(readlatency|writelatency):count";
+
+        public String getName() {
+            return name;
+        }
+
+        public String getMetrics() {
+            return metrics;
+        }
+
+        public int getMaxSeries() {
+            return maxSeries;
+        }
+
+        public String getRankBy() {
+            return rankBy;
+        }
+    }
+
+    public static final class RemoteWrite {
+        private String url;
+        private int maxSamplesPerSend = 2000;
+        private int maxInFlight = 2;
+        private int queueCapacity = 100000;
+        private int maxRetries = 5;
+        private int minBackoffInMs = 100;
+        private int maxBackoffInMs = 10000;
+        private int timeoutInMs = 10000;
+        private int resendUnchangedInSec = 240;
+
+        public String getUrl() {
+            return url;
+        }
+
+        public int getMaxSamplesPerSend() {
+            return maxSamplesPerSend;
+        }
+
+        public int getMaxInFlight() {
+            return maxInFlight;
+        }
+
+        public int getQueueCapacity() {
+            return queueCapacity;
+        }
+
+        public int getMaxRetries() {
+            return maxRetries;
+        }
+
+        public int getMinBackoffInMs() {
+            return minBackoffInMs;
+        }
+
+        public int getMaxBackoffInMs() {
+            return maxBackoffInMs;
+        }
+
+        public int getTimeoutInMs() {
+            return timeoutInMs;
+        }
+
+        public int getResendUnchangedInSec() {
+            return resendUnchangedInSec;
+        }
+    }
+
+    public static final class SampleBuffer {
+        private int retentionInSec = 3600;
+        private int maxMemoryInMb = 64;
+
+        public int getRetentionInSec() {
+            return retentionInSec;
+        }
+
+        public int getMaxMemoryInMb() {
+            return maxMemoryInMb;
+        }
+    }
+
+    public static final class Http {
+        private int maxConcurrentRequests = 4;
+        private int maxConnections = 100;
+        private int requestTimeoutInSec = 30;
+        private int responseTimeoutInSec = 120;
+        private int idleTimeoutInSec = 30;
+
+        public int getMaxConcurrentRequests() {
+            return maxConcurrentRequests;
+        }
+
+        public int getMaxConnections() {
+            return maxConnections;
+        }
+
+        public int getRequestTimeoutInSec() {
+            return requestTimeoutInSec;
+        }
+
+        public int getResponseTimeoutInSec() {
+            return responseTimeoutInSec;
+        }
+
+        public int getIdleTimeoutInSec() {
+            return idleTimeoutInSec;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.criteo.nosql.cassandra.exporter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ * Watch the config file and hand the new config over whenever its content changes.
+ * <p>
+ * The parent directory is watched rather than the file itself, so editors replacing the file and Kubernetes ConfigMaps
+ * swapping a symlink are noticed as well. Events are only a hint: the content is compared to the last one loaded.
+ */
+final class ConfigWatcher implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(ConfigWatcher.class);
+    // Let the writer finish, editors usually produce several events for a single save
+    private static final long SETTLE_MS = 500;
+
+    private final Path path;
+    private final Consumer<Config> onChange;
+    private byte[] lastContent;
+
+    ConfigWatcher(Path path, Consumer<Config> onChange) {
+        this.path = path.toAbsolutePath();
+        this.onChange = onChange;
+        this.lastContent = read();
+    }
+
+    static Thread start(Path path, Consumer<Config> onChange) {
+        Thread thread = new Thread(new ConfigWatcher(path, onChange), "config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    @Override
+    public void run() {
+        try (WatchService watchService = path.getFileSystem().newWatchService()) {
+            path.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            logger.info("Watching {} for config changes", path);
+
+            for (; ; ) {
+                WatchKey key = watchService.take();
+                Thread.sleep(SETTLE_MS);
+                key.pollEvents();
+                if (!key.reset()) {
+                    logger.warn("Cannot watch {} anymore, config changes will be ignored", path.getParent());
+                    return;
+                }
+                checkForChange();
+            }
+        } catch (InterruptedException e) {
+            logger.info("Stopped watching {}", path);
+        } catch (IOException e) {
+            logger.error("Cannot watch {}, config changes will be ignored", path, e);
+        }
+    }
+
+    void checkForChange() {
+        byte[] content = read();
+        if (content == null || Arrays.equals(content, lastContent)) return;
+        lastContent = content;
+
+        Optional<Config> cfg = Config.fromFile(path.toString());
+        if (cfg.isPresent()) {
+            onChange.accept(cfg.get());
+        } else {
+            logger.error("Ignoring the new content of {} as it cannot be parsed", path);
+        }
+    }
+
+    private byte[] read() {
+        try {
+            return Files.readAllBytes(path);
+        } catch (IOException e) {
+            // The file may be missing while it is being replaced
+            logger.debug("Cannot read {}", path, e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.criteo.nosql.cassandra.exporter;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keep the CPU used by the scraping thread under a share of one core, by sleeping as much as needed along the cycle.
+ * When the JVM cannot measure the CPU time of a thread, the elapsed time is used instead, which only throttles more.
+ */
+final class CpuThrottle {
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final boolean cpuTimeSupported = threads.isCurrentThreadCpuTimeSupported();
+    private final double share;
+    private long startCpu;
+    private long startWall;
+    private long throttledNanos;
+
+    CpuThrottle(int maxCpuPercent) {
+        if (maxCpuPercent <= 0 || maxCpuPercent > 100) {
+            throw new IllegalArgumentException("The CPU budget must be between 1 and 100 percent, got " + maxCpuPercent);
+        }
+        this.share = maxCpuPercent / 100.0;
+    }
+
+    /**
+     * Start a new cycle
+     */
+    void start() {
+        startWall = System.nanoTime();
+        startCpu = cpuTime();
+        throttledNanos = 0;
+    }
+
+    /**
+     * Sleep until the CPU used since the start of the cycle fits the budget
+     */
+    void pace() throws InterruptedException {
+        long cpu = cpuTime() - startCpu - (cpuTimeSupported ? 0 : throttledNanos);
+        long wall = System.nanoTime() - startWall;
+        long minWall = (long) (cpu / share);
+        long sleepMillis = TimeUnit.NANOSECONDS.toMillis(minWall - wall);
+        if (sleepMillis > 0) {
+            Thread.sleep(sleepMillis);
+            throttledNanos += TimeUnit.MILLISECONDS.toNanos(sleepMillis);
+        }
+    }
+
+    private long cpuTime() {
+        return cpuTimeSupported ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+}
@@ -0,0 +1,170 @@
+package com.criteo.nosql.cassandra.exporter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanAttributeInfo;
+import javax.management.ObjectName;
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * On-disk copy of what the scraper learned about the node: the attributes and duration unit of each MBean type, the
+ * compiled scrap plan and optionally the last exported values.
+ * Restoring it on startup avoids the getMBeanInfo/regex storm of a cold discovery and lets us serve metrics right away.
+ */
+final class DiscoverySnapshot {
+    private static final Logger logger = LoggerFactory.getLogger(DiscoverySnapshot.class);
+    private static final int MAGIC = 0x43455853;
+    private static final int VERSION = 2;
+
+    final long savedAt;
+    final int rulesFingerprint;
+    final Map<String, MBeanAttributeInfo[]> attributes;
+    final Map<String, String> durationUnits;
+    final Map<ObjectName, List<JmxScraper.MBeanInfo>> plan;
+    final List<Sample> samples;
+
+    DiscoverySnapshot(long savedAt, int rulesFingerprint, Map<String, MBeanAttributeInfo[]> attributes, Map<String, String> durationUnits, Map<ObjectName, List<JmxScraper.MBeanInfo>> plan, List<Sample> samples) {
+        this.savedAt = savedAt;
+        this.rulesFingerprint = rulesFingerprint;
+        this.attributes = attributes;
+        this.durationUnits = durationUnits;
+        this.plan = plan;
+        this.samples = samples;
+    }
+
+    static Optional<DiscoverySnapshot> load(Path path) {
+        if (!Files.isRegularFile(path)) {
+            return Optional.empty();
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(path))))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                logger.warn("Ignoring discovery snapshot {} as it has an unknown format", path);
+                return Optional.empty();
+            }
+            long savedAt = in.readLong();
+            int rulesFingerprint = in.readInt();
+
+            int attributesSize = in.readInt();
+            Map<String, MBeanAttributeInfo[]> attributes = new HashMap<>(attributesSize * 2);
+            for (int i = 0; i < attributesSize; i++) {
+                String key = in.readUTF();
+                MBeanAttributeInfo[] infos = new MBeanAttributeInfo[in.readInt()];
+                for (int j = 0; j < infos.length; j++) {
+                    infos[j] = new MBeanAttributeInfo(in.readUTF(), in.readUTF(), "", in.readBoolean(), false, false);
+                }
+                attributes.put(key, infos);
+            }
+
+            int durationUnitsSize = in.readInt();
+            Map<String, String> durationUnits = new HashMap<>(durationUnitsSize * 2);
+            for (int i = 0; i < durationUnitsSize; i++) {
+                durationUnits.put(in.readUTF(), in.readUTF());
+            }
+
+            int planSize = in.readInt();
+            Map<ObjectName, List<JmxScraper.MBeanInfo>> plan = new HashMap<>(planSize * 2);
+            for (int i = 0; i < planSize; i++) {
+                ObjectName mBeanName = ObjectName.getInstance(in.readUTF());
+                int entries = in.readInt();
+                List<JmxScraper.MBeanInfo> mBeanInfos = new ArrayList<>(entries);
+                for (int j = 0; j < entries; j++) {
+                    MBeanAttributeInfo attribute = new MBeanAttributeInfo(in.readUTF(), in.readUTF(), "", true, false, false);
+                    mBeanInfos.add(new JmxScraper.MBeanInfo(in.readUTF(), mBeanName, attribute, in.readInt()));
+                }
+                plan.put(mBeanName, mBeanInfos);
+            }
+
+            int labelsSize = in.readInt();
+            int samplesSize = in.readInt();
+            List<Sample> samples = new ArrayList<>(samplesSize);
+            for (int i = 0; i < samplesSize; i++) {
+                String[] labels = new String[labelsSize];
+                for (int j = 0; j < labelsSize; j++) {
+                    labels[j] = in.readUTF();
+                }
+                samples.add(new Sample(labels, in.readDouble()));
+            }
+
+            return Optional.of(new DiscoverySnapshot(savedAt, rulesFingerprint, attributes, durationUnits, plan, samples));
+        } catch (Exception e) {
+            logger.warn("Cannot load discovery snapshot {}", path, e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Write the snapshot in a temporary file first, so a crash in the middle never leaves a truncated snapshot behind
+     */
+    void save(Path path) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(tmp))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(savedAt);
+            out.writeInt(rulesFingerprint);
+
+            out.writeInt(attributes.size());
+            for (Map.Entry<String, MBeanAttributeInfo[]> e : attributes.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeInt(e.getValue().length);
+                for (MBeanAttributeInfo info : e.getValue()) {
+                    out.writeUTF(info.getName());
+                    out.writeUTF(info.getType());
+                    out.writeBoolean(info.isReadable());
+                }
+            }
+
+            out.writeInt(durationUnits.size());
+            for (Map.Entry<String, String> e : durationUnits.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeUTF(e.getValue());
+            }
+
+            out.writeInt(plan.size());
+            for (Map.Entry<ObjectName, List<JmxScraper.MBeanInfo>> e : plan.entrySet()) {
+                out.writeUTF(e.getKey().getCanonicalName());
+                out.writeInt(e.getValue().size());
+                for (JmxScraper.MBeanInfo mBeanInfo : e.getValue()) {
+                    out.writeUTF(mBeanInfo.attribute.getName());
+                    out.writeUTF(mBeanInfo.attribute.getType());
+                    out.writeUTF(mBeanInfo.metricName);
+                    out.writeInt(mBeanInfo.frequency);
+                }
+            }
+
+            out.writeInt(samples.isEmpty() ? 0 : samples.get(0).labels.length);
+            out.writeInt(samples.size());
+            for (Sample sample : samples) {
+                for (String label : sample.labels) {
+                    out.writeUTF(label);
+                }
+                out.writeDouble(sample.value);
+            }
+        }
+
+        try {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    static final class Sample {
+        final String[] labels;
+        final double value;
+
+        Sample(String[] labels, double value) {
+            this.labels = labels;
+            this.value = value;
+        }
+    }
+}
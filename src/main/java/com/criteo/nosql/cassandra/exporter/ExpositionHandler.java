@@ -0,0 +1,203 @@
+package com.criteo.nosql.cassandra.exporter;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serve the cassandra metrics from the series index, along with the other metrics of the registry on / and /metrics,
+ * and the cassandra metrics filtered by scrap tier, name prefix or keyspace:
+ * <ul>
+ * <li>/metrics/tier/{seconds} the series scraped every {seconds}</li>
+ * <li>/metrics?prefix=...&amp;keyspace=... the series whose name starts with prefix and/or belonging to keyspace</li>
+ * <li>/metrics/delta?since={generation} the series changed since a generation, that can also be filtered by prefix
+ * and keyspace. The X-Generation header tells the generation to ask for the next delta, and X-Delta tells if the page
+ * only holds the changes or if it is a full page, when the changes since that generation are not known</li>
+ * <li>/metrics/backfill the recent samples of the series in the OpenMetrics format with their timestamp, when they
+ * are buffered, that can also be filtered by prefix and keyspace</li>
+ * </ul>
+ * Filters can be combined. As the prometheus client does, unfiltered pages can also be restricted to some metric
+ * families with name[]=... Pages are streamed in chunks while they are rendered, instead of being buffered whole.
+ */
+final class ExpositionHandler implements HttpHandler {
+    static final String PATH = "/metrics";
+    static final String DELTA_PATH = PATH + "/delta";
+    static final String GENERATION_HEADER = "X-Generation";
+    static final String DELTA_HEADER = "X-Delta";
+    static final String BACKFILL_PATH = PATH + "/backfill";
+    private static final String TIER_PATH = PATH + "/tier/";
+    private static final String NAMES_PARAM = "name[]";
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final SeriesIndex series;
+    private final Optional<SampleBuffer> samples;
+    private final CollectorRegistry registry;
+
+    ExpositionHandler(SeriesIndex series, Optional<SampleBuffer> samples, CollectorRegistry registry) {
+        this.series = series;
+        this.samples = samples;
+        this.registry = registry;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        final Tracer.Span span = Tracer.INSTANCE.start(Tracer.Kind.RENDER);
+        long served = 0;
+        try {
+            String path = exchange.getRequestURI().getPath();
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            Optional<String> prefix = Optional.ofNullable(params.get("prefix"));
+            Optional<String> keyspace = Optional.ofNullable(params.get("keyspace"));
+
+            if (path.equals(BACKFILL_PATH)) {
+                served = backfill(exchange, prefix, keyspace);
+                return;
+            }
+
+            Optional<Integer> tier = Optional.empty();
+            boolean delta = path.equals(DELTA_PATH);
+            long since = 0;
+            if (path.startsWith(TIER_PATH)) {
+                try {
+                    tier = Optional.of(Integer.parseInt(path.substring(TIER_PATH.length())) * 1000);
+                } catch (NumberFormatException e) {
+                    send(exchange, 404, "text/plain; charset=utf-8", ("Unknown tier " + path.substring(TIER_PATH.length()) + ", expected a scrap frequency in seconds\n").getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+            } else if (delta) {
+                try {
+                    since = Long.parseLong(params.getOrDefault("since", "0"));
+                } catch (NumberFormatException e) {
+                    send(exchange, 400, "text/plain; charset=utf-8", ("Invalid generation " + params.get("since") + ", expected the " + GENERATION_HEADER + " header of the previous page\n").getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+            } else if (!path.equals("/") && !path.equals(PATH) && !path.equals(PATH + "/")) {
+                send(exchange, 404, "text/plain; charset=utf-8", ("Unknown path " + path + "\n").getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+
+            boolean unfiltered = !delta && !tier.isPresent() && !prefix.isPresent() && !keyspace.isPresent();
+            Set<String> names = unfiltered ? parseNames(exchange.getRequestURI().getRawQuery()) : Collections.emptySet();
+            Predicate<String> families = names.isEmpty() ? name -> true : names::contains;
+
+            // Delta pages are only for our own consumers, they don't need the content negotiation
+            String contentType = delta ? TextFormat.CONTENT_TYPE_004 : TextFormat.chooseContentType(exchange.getRequestHeaders().getFirst("Accept"));
+            boolean gzip = acceptsGzip(exchange);
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            if (gzip) exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            if (delta) {
+                // Read before the series, the changes published meanwhile are then also in the next delta
+                long generation = series.generation();
+                boolean changesOnly = series.hasDeltaSince(since);
+                if (!changesOnly) since = 0;
+                exchange.getResponseHeaders().set(GENERATION_HEADER, String.valueOf(generation));
+                exchange.getResponseHeaders().set(DELTA_HEADER, changesOnly ? "changes" : "full");
+            }
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+
+            // A length of 0 means chunked, each flush of the buffers being sent right away to the client
+            exchange.sendResponseHeaders(200, 0);
+            // The series lines are written as is to the stream, the other metrics through the writer, that closes both
+            OutputStream out = new BufferedOutputStream(gzip ? new GZIPOutputStream(exchange.getResponseBody(), BUFFER_SIZE) : exchange.getResponseBody(), BUFFER_SIZE);
+            try (Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+                if (contentType.equals(TextFormat.CONTENT_TYPE_004)) {
+                    served = series.write(out, tier, prefix, keyspace, since, families);
+                    if (unfiltered) TextFormat.write004(writer, names.isEmpty() ? registry.metricFamilySamples() : registry.filteredMetricFamilySamples(names));
+                } else {
+                    List<Collector.MetricFamilySamples> selected = new ArrayList<>();
+                    for (Collector.MetricFamilySamples family : series.select(tier, prefix, keyspace)) {
+                        if (!families.test(family.name)) continue;
+                        selected.add(family);
+                        served += family.samples.size();
+                    }
+                    if (unfiltered) selected.addAll(Collections.list(names.isEmpty() ? registry.metricFamilySamples() : registry.filteredMetricFamilySamples(names)));
+                    TextFormat.writeFormat(contentType, writer, Collections.enumeration(selected));
+                }
+            }
+        } finally {
+            exchange.close();
+            span.end(exchange.getRequestURI(), "", served);
+        }
+    }
+
+    /**
+     * @return the number of samples served
+     */
+    private long backfill(HttpExchange exchange, Optional<String> prefix, Optional<String> keyspace) throws IOException {
+        if (!samples.isPresent()) {
+            send(exchange, 404, "text/plain; charset=utf-8", "The samples are not buffered, set sampleBuffer in the config to backfill them\n".getBytes(StandardCharsets.UTF_8));
+            return 0;
+        }
+
+        boolean gzip = acceptsGzip(exchange);
+        exchange.getResponseHeaders().set("Content-Type", SampleBuffer.CONTENT_TYPE);
+        if (gzip) exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            exchange.sendResponseHeaders(200, -1);
+            return 0;
+        }
+
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = new BufferedOutputStream(gzip ? new GZIPOutputStream(exchange.getResponseBody(), BUFFER_SIZE) : exchange.getResponseBody(), BUFFER_SIZE)) {
+            return samples.get().write(out, prefix, keyspace);
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    private static boolean acceptsGzip(HttpExchange exchange) {
+        String encodings = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        return encodings != null && encodings.toLowerCase().contains("gzip");
+    }
+
+    /**
+     * @return the metric families asked by the name[] parameters, if any
+     */
+    static Set<String> parseNames(String query) throws IOException {
+        if (query == null || query.isEmpty()) {
+            return Collections.emptySet();
+        }
+
+        Set<String> names = new HashSet<>();
+        for (String pair : query.split("&")) {
+            int pos = pair.indexOf('=');
+            if (pos <= 0 || !URLDecoder.decode(pair.substring(0, pos), "UTF-8").equals(NAMES_PARAM)) continue;
+            names.add(URLDecoder.decode(pair.substring(pos + 1), "UTF-8"));
+        }
+        return names;
+    }
+
+    static Map<String, String> parseQuery(String query) throws IOException {
+        if (query == null || query.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        Map<String, String> params = new HashMap<>();
+        for (String pair : query.split("&")) {
+            int pos = pair.indexOf('=');
+            if (pos <= 0) continue;
+            params.put(URLDecoder.decode(pair.substring(0, pos), "UTF-8"), URLDecoder.decode(pair.substring(pos + 1), "UTF-8"));
+        }
+        return params;
+    }
+}
@@ -0,0 +1,236 @@
+package com.criteo.nosql.cassandra.exporter;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Http server of the metrics pages and of the health check.
+ * <p>
+ * Connections are accepted and kept alive by the selector of the JDK http server, so an idle connection doesn't hold
+ * any thread. Requests are handled on virtual threads when the JVM has them, or otherwise on a pool of up to one thread
+ * per connection, so there is no small set of threads that slow clients could all hold. Only maxConcurrentRequests metrics
+ * pages are rendered at the same time, the requests above are rejected with a 503 after a short wait instead of
+ * queueing. /health and /ready take no slot and always answer at once.
+ * <p>
+ * As an agent, the limits of the JDK http server, that apply to the whole JVM, are left to Cassandra and the other
+ * agents, so a page that is not sent within responseTimeoutInSec is cut by the exporter itself instead.
+ */
+final class ExpositionServer {
+    private static final Logger logger = LoggerFactory.getLogger(ExpositionServer.class);
+
+    static final String HEALTH_PATH = "/health";
+    // Health path of the prometheus client http server, that the exporter used to serve
+    private static final String LEGACY_HEALTH_PATH = "/-/healthy";
+    private static final byte[] HEALTHY = "Exporter is Healthy.\n".getBytes(StandardCharsets.UTF_8);
+    // Ready once the fastest tier has been scraped entirely, for the readiness probes
+    static final String READY_PATH = "/ready";
+    private static final byte[] READY = "Exporter is Ready.\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] STARTING = "Exporter is starting, the fastest tier has not been scraped entirely yet.\n".getBytes(StandardCharsets.UTF_8);
+    // Long enough for a client pulling again on the same connection not to be rejected before its previous page released its slot
+    private static final long SLOT_WAIT_MS = 100;
+    // Threads above maxConnections, for /health and /ready when the JVM does not enforce maxConnections
+    static final int STATUS_THREADS = 2;
+
+    private static final Gauge requestsInFlight = Gauge.build()
+            .name("cassandra_exporter_http_requests_in_flight")
+            .help("Metrics pages being served")
+            .register();
+    private static final Counter rejectedRequests = Counter.build()
+            .name("cassandra_exporter_http_rejected_requests_total")
+            .help("Metrics pages rejected with a 503 because maxConcurrentRequests were already being served")
+            .register();
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private ExpositionServer(HttpServer server, ExecutorService executor) {
+        this.server = server;
+        this.executor = executor;
+    }
+
+    /**
+     * @param samples the recent samples served for backfilling, if they are buffered
+     * @param ready   if the exporter is ready to be scraped, answered by /ready
+     * @param agent   if the exporter runs inside Cassandra, where the threads serving the requests are daemons, when
+     *                they are not virtual threads already, and the JVM wide limits of the http server are not set
+     */
+    static ExpositionServer start(Config cfg, SeriesIndex series, Optional<SampleBuffer> samples, BooleanSupplier ready, CollectorRegistry registry, boolean agent) throws IOException {
+        Config.Http http = cfg.getHttp();
+        if (http.getMaxConcurrentRequests() <= 0) {
+            throw new IllegalArgumentException("The http server needs to serve at least one request at a time");
+        }
+        if (!agent) limitConnections(http);
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(cfg.getListenAddress(), cfg.getListenPort()), 0);
+        ExecutorService executor = newExecutor(http, agent);
+        server.setExecutor(executor);
+
+        HttpHandler handler = new ExpositionHandler(series, samples, registry);
+        if (agent) handler = withDeadline(TimeUnit.SECONDS.toNanos(http.getResponseTimeoutInSec()), handler);
+        HttpHandler metrics = bounded(new Semaphore(http.getMaxConcurrentRequests()), handler);
+        server.createContext("/", metrics);
+        server.createContext(HEALTH_PATH, exchange -> status(exchange, 200, HEALTHY));
+        server.createContext(LEGACY_HEALTH_PATH, exchange -> status(exchange, 200, HEALTHY));
+        server.createContext(READY_PATH, exchange -> {
+            boolean isReady = ready.getAsBoolean();
+            status(exchange, isReady ? 200 : 503, isReady ? READY : STARTING);
+        });
+        server.start();
+
+        logger.info("Serving metrics on {}:{} with up to {} pages at a time", cfg.getListenAddress(), server.getAddress().getPort(), http.getMaxConcurrentRequests());
+        return new ExpositionServer(server, executor);
+    }
+
+    int port() {
+        return server.getAddress().getPort();
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * The JDK http server only reads its limits and timeouts from system properties, once for the whole JVM, so they
+     * are set here when the exporter runs on its own, unless they were given on the command line. They apply to every connection:
+     * requestTimeoutInSec to receive a request, responseTimeoutInSec to send its response, which cuts the stalled clients
+     * while leaving time to stream the large pages, and idleTimeoutInSec before an idle kept alive connection is closed. Nagle's algorithm is disabled as well, it
+     * would delay the body of small responses, sent apart from their headers, until the client acknowledges them.
+     */
+    private static void limitConnections(Config.Http http) {
+        setDefault("sun.net.httpserver.nodelay", "true");
+        setDefault("jdk.httpserver.maxConnections", String.valueOf(http.getMaxConnections()));
+        setDefault("sun.net.httpserver.maxReqTime", String.valueOf(http.getRequestTimeoutInSec()));
+        setDefault("sun.net.httpserver.maxRspTime", String.valueOf(http.getResponseTimeoutInSec()));
+        setDefault("sun.net.httpserver.idleInterval", String.valueOf(http.getIdleTimeoutInSec()));
+    }
+
+    private static void setDefault(String property, String value) {
+        if (System.getProperty(property) == null) {
+            System.setProperty(property, value);
+        }
+    }
+
+    static ExecutorService newExecutor(Config.Http http, boolean daemon) {
+        try {
+            // Virtual threads, from JDK 21, cost almost nothing while a slow client blocks them in a write
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Requests don't wait for a thread while there are at most maxConnections of them, which the JDKs before 11
+            // do not enforce, so the requests above are queued instead of starting ever more threads.
+            // Idle threads die after a minute
+            AtomicInteger count = new AtomicInteger();
+            int maxThreads = http.getMaxConnections() + STATUS_THREADS;
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "cassandra-exporter-http-" + count.incrementAndGet());
+                thread.setDaemon(daemon);
+                return thread;
+            });
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
+
+    /**
+     * Cut the response once it took more than timeoutNanos, at its next write, as the JDK http server would with
+     * maxRspTime. A client that stops reading altogether still holds its thread until the connection breaks, but only
+     * maxConcurrentRequests of them can do so.
+     */
+    private static HttpHandler withDeadline(long timeoutNanos, HttpHandler handler) {
+        return exchange -> {
+            long deadline = System.nanoTime() + timeoutNanos;
+            exchange.setStreams(null, new FilterOutputStream(exchange.getResponseBody()) {
+                private boolean expired;
+                private boolean closed;
+
+                @Override
+                public void write(int b) throws IOException {
+                    checkDeadline();
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    checkDeadline();
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    // Failing the close makes the exchange close the connection, instead of ending the truncated page as if it was complete
+                    if (expired) throw new IOException("Response cut after " + TimeUnit.NANOSECONDS.toSeconds(timeoutNanos) + "s");
+                    // Closed by the handler then by the exchange, and the close of a FilterOutputStream is not idempotent before JDK 9
+                    if (closed) return;
+                    closed = true;
+                    super.close();
+                }
+
+                private void checkDeadline() throws IOException {
+                    expired |= System.nanoTime() - deadline > 0;
+                    if (expired) throw new IOException("Response not sent within " + TimeUnit.NANOSECONDS.toSeconds(timeoutNanos) + "s");
+                }
+            });
+            handler.handle(exchange);
+        };
+    }
+
+    private static HttpHandler bounded(Semaphore slots, HttpHandler handler) {
+        return exchange -> {
+            boolean acquired;
+            try {
+                acquired = slots.tryAcquire(SLOT_WAIT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                acquired = false;
+            }
+            if (!acquired) {
+                rejectedRequests.inc();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+                return;
+            }
+            requestsInFlight.inc();
+            try {
+                handler.handle(exchange);
+            } finally {
+                requestsInFlight.dec();
+                slots.release();
+            }
+        };
+    }
+
+    private static void status(HttpExchange exchange, int code, byte[] message) throws IOException {
+        try {
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(code, -1);
+            } else {
+                exchange.sendResponseHeaders(code, message.length);
+                exchange.getResponseBody().write(message);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
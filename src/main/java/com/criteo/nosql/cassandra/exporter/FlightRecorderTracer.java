@@ -0,0 +1,129 @@
+package com.criteo.nosql.cassandra.exporter;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Flight Recorder events of the exporter, all under the Cassandra Exporter category.
+ * <p>
+ * Their thresholds are regular event settings, e.g to only record the JMX calls slower than 50ms:
+ * {@code jcmd <pid> JFR.start settings=exporter.jfc} with {@code <setting name="threshold">50 ms</setting>} for cassandra_exporter.JmxCall
+ */
+final class FlightRecorderTracer implements Tracer {
+    private final Map<Kind, EventType> eventTypes = new EnumMap<>(Kind.class);
+
+    FlightRecorderTracer() {
+        for (Kind kind : Kind.values()) {
+            eventTypes.put(kind, EventType.getEventType(newEvent(kind).getClass()));
+        }
+    }
+
+    /**
+     * A span is started for every JMX call, so no event is even allocated while no recording asks for its kind
+     */
+    @Override
+    public Span start(Kind kind) {
+        if (!eventTypes.get(kind).isEnabled()) return Span.NONE;
+
+        ExporterEvent event = newEvent(kind);
+        event.begin();
+        return event;
+    }
+
+    private static ExporterEvent newEvent(Kind kind) {
+        switch (kind) {
+            case CYCLE:
+                return new CycleEvent();
+            case TIER:
+                return new TierEvent();
+            case DISCOVERY:
+                return new DiscoveryEvent();
+            case NODE_INFO:
+                return new NodeInfoEvent();
+            case JMX_CALL:
+                return new JmxCallEvent();
+            case STALE_SWEEP:
+                return new StaleSweepEvent();
+            case RENDER:
+                return new RenderEvent();
+            default:
+                throw new IllegalArgumentException("No event for " + kind);
+        }
+    }
+
+    @Category("Cassandra Exporter")
+    @StackTrace(false)
+    abstract static class ExporterEvent extends Event implements Span {
+        @Label("Subject")
+        String subject;
+
+        @Label("Detail")
+        String detail;
+
+        @Label("Count")
+        long count;
+
+        @Override
+        public void end(Object subject, String detail, long count) {
+            end();
+            if (shouldCommit()) {
+                this.subject = String.valueOf(subject);
+                this.detail = detail;
+                this.count = count;
+                commit();
+            }
+        }
+    }
+
+    @Name("cassandra_exporter.Cycle")
+    @Label("Scrap Cycle")
+    @Description("A whole scrap cycle. Count is the number of attributes fetched")
+    static final class CycleEvent extends ExporterEvent {
+    }
+
+    @Name("cassandra_exporter.Tier")
+    @Label("Scrap Tier")
+    @Description("A scrap frequency due during a cycle, subject being the frequency in seconds. Count is the number of attributes fetched for it")
+    static final class TierEvent extends ExporterEvent {
+    }
+
+    @Name("cassandra_exporter.Discovery")
+    @Label("MBean Discovery")
+    @Description("Compilation of the scrap plan of a MBean, subject being its ObjectName. Count is the number of attributes planned")
+    static final class DiscoveryEvent extends ExporterEvent {
+    }
+
+    @Name("cassandra_exporter.NodeInfo")
+    @Label("Node Info Refresh")
+    @Description("Retrieval of the cluster, datacenter, keyspaces and tables of the node. Count is the number of tables")
+    static final class NodeInfoEvent extends ExporterEvent {
+    }
+
+    @Name("cassandra_exporter.JmxCall")
+    @Label("Slow JMX Call")
+    @Description("Fetch of an attribute slower than the threshold, subject being the ObjectName and detail the attribute")
+    @Threshold("10 ms")
+    static final class JmxCallEvent extends ExporterEvent {
+    }
+
+    @Name("cassandra_exporter.StaleSweep")
+    @Label("Stale Sweep")
+    @Description("Removal of the metrics of dropped keyspaces and tables. Count is the number of metrics removed")
+    static final class StaleSweepEvent extends ExporterEvent {
+    }
+
+    @Name("cassandra_exporter.Render")
+    @Label("Exposition Render")
+    @Description("Rendering of a metrics page, subject being the requested path. Count is the number of cassandra metrics served")
+    static final class RenderEvent extends ExporterEvent {
+    }
+}
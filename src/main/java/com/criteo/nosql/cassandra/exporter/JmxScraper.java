@@ -5,81 +5,246 @@ import io.prometheus.client.Gauge;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.AttributeNotFoundException;
 import javax.management.MBeanAttributeInfo;
 import javax.management.MBeanServerConnection;
 import javax.management.ObjectName;
 import javax.management.RuntimeMBeanException;
 import javax.management.openmbean.CompositeData;
-import javax.management.openmbean.CompositeType;
 import javax.management.remote.JMXConnector;
 import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
 import javax.management.remote.rmi.RMIConnectorServer;
 import javax.naming.Context;
 import javax.rmi.ssl.SslRMIClientSocketFactory;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntPredicate;
 import java.util.regex.Pattern;
-import java.util.stream.Stream;
 
+import static java.util.stream.Collectors.partitioningBy;
 import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
 
 
 public class JmxScraper {
     private final Gauge stats;
+    private final SeriesIndex series;
     private static final Logger logger = LoggerFactory.getLogger(JmxScraper.class);
     private static final double[] offsetPercentiles = new double[]{0.5, 0.75, 0.95, 0.98, 0.99};
     private static final String metricSeparator = ":";
-    private static final Map<String, MBeanAttributeInfo[]> mBeansAttributesCache = new HashMap<>();
+    private static final int NEVER = -1;
+    private static final MBeanAttributeInfo EMPTY_ATTRIBUTE = new MBeanAttributeInfo("", "", "", false, false, false);
+    private static final Map<String, MBeanAttributeInfo[]> mBeansAttributesCache = new ConcurrentHashMap<>();
+    // DurationUnit of the Timer MBeans, by the same key as their attributes, as it is the same for all the timers of a type
+    private static final Map<String, String> mBeansDurationUnits = new ConcurrentHashMap<>();
+    // Shape of the Meter, Timer and Histogram MBeans of the Cassandra metrics registry
+    private static final List<String> RATE_ATTRIBUTES = Arrays.asList("MeanRate", "OneMinuteRate", "FiveMinuteRate", "FifteenMinuteRate");
+    private static final List<String> BUCKETS_ATTRIBUTES = Arrays.asList("Values", "RecentValues");
+    // Threads calling the node at the same time, to discover the MBeans and fetch their attributes
+    private static final int JMX_THREADS = 4;
+    // MBeans whose attributes are fetched ahead of the one being decoded, at most
+    private static final int FETCH_WINDOW = 64;
+    // Value fetched for an attribute that is not in its MBean anymore
+    private static final Object VANISHED = new Object();
 
     private final String jmxUrl;
     private final Pattern PATTERN = Pattern.compile("(:type=|,[^=]+=|\\.)");
-    private final List<Pattern> blacklist;
-    private final TreeMap<Integer, List<Pattern>> scrapFrequencies;
-    private final Map<Integer, Long> lastScrapes;
+    private ScrapRules rules;
+    private final AtomicReference<ScrapRules> pendingRules = new AtomicReference<>();
+    private Map<Integer, Long> lastScrapes;
     private final Map<String, Object> jmxEnv;
     private final String[] additionalLabelValues;
+    private final Map<ObjectName, List<MBeanInfo>> scrapPlan = new HashMap<>();
+    private final Optional<Path> snapshotPath;
+    private final boolean snapshotValues;
+    private final long snapshotIntervalMs;
+    // When the snapshot was last saved, and if MBeans were discovered or dropped since then
+    private long lastSnapshot;
+    private boolean planChanged;
+    private final Aggregator aggregator;
+    private final CardinalityGuard guard;
+    private Set<List<String>> restoredSeries = Collections.emptySet();
+    // Rollups left without any source by a reload of the rules, whose series are removed once the node info is known
+    private final List<Aggregator.Rollup> withdrawnRollups = new ArrayList<>();
+    private Optional<RemoteWriter> remoteWriter = Optional.empty();
+    private Optional<SampleBuffer> sampleBuffer = Optional.empty();
+    private final List<String> labelNames;
+    private final boolean structuredLabels;
+    // Structured layout of each discovered MBean by MBean path, and source metric of each exported rollup
+    private final Map<String, StructuredName.Layout> layouts = new ConcurrentHashMap<>();
+    private final Map<String, String> rollupSources = new ConcurrentHashMap<>();
+    // Keyspace and table parts of each metric name, {keyspace} or {keyspace, table} or none, parsed once
+    private final Map<String, String[]> tablePaths = new HashMap<>();
+    private final Startup startup = new Startup();
+    private final ExecutorService jmxExecutor;
 
 
-    public JmxScraper(String jmxUrl, Optional<String> username, Optional<String> password, boolean ssl, List<String> blacklist, SortedMap<Integer, List<String>> scrapFrequencies, Map<String, String> additionalLabels) {
+    /**
+     * @param jmxUrl           the node to connect to, unless the MBean server is given to run
+     * @param additionalLabels labels added to every series, with their values
+     */
+    public JmxScraper(String jmxUrl, Config cfg, Map<String, String> additionalLabels) {
         this.jmxUrl = jmxUrl;
-        this.blacklist = blacklist.stream().map(Pattern::compile).collect(toList());
-        this.scrapFrequencies = new TreeMap<>();
-        this.lastScrapes = new HashMap<>(scrapFrequencies.size());
+        this.rules = new ScrapRules(cfg.getBlacklist(), cfg.getMaxScrapFrequencyInSec(), cfg.getCountersOnly(), cfg.getComputeRates());
+        this.lastScrapes = new HashMap<>(rules.scrapFrequencies.size());
+        this.rules.scrapFrequencies.keySet().forEach(frequency -> lastScrapes.put(frequency, 0L));
         String[] additionalLabelKeys = additionalLabels.keySet().stream().toArray(String[]::new);
         this.additionalLabelValues = additionalLabels.values().stream().toArray(String[]::new);
 
+        String[] labelNames = concat(new String[]{"cluster", "datacenter", "keyspace", "table", "name"}, additionalLabelKeys);
+        this.labelNames = Arrays.asList(labelNames);
+        this.structuredLabels = cfg.getStructuredLabels();
+        // The gauge only holds the values, the series are exposed by the index that caches their lines
         this.stats = Gauge.build()
                 .name("cassandra_stats")
                 .help("node stats")
-                .labelNames(concat(new String[]{"cluster", "datacenter", "keyspace", "table", "name"}, additionalLabelKeys))
-                .register();
-
-        scrapFrequencies.forEach((k, v) -> {
-            this.scrapFrequencies.put(k * 1000, v.stream().map(Pattern::compile).collect(toList()));
-            this.lastScrapes.put(k * 1000, 0L);
-        });
+                .labelNames(labelNames)
+                .create();
+        this.series = new SeriesIndex(stats, this.labelNames, this::scrapFrequency, structuredLabels ? Optional.of(this::structuredName) : Optional.empty());
 
         jmxEnv = new HashMap<>();
-        username.ifPresent(user -> {
-            String[] credential = new String[]{user, password.orElse("")};
+        cfg.getUser().ifPresent(user -> {
+            String[] credential = new String[]{user, cfg.getPassword().orElse("")};
             jmxEnv.put(javax.management.remote.JMXConnector.CREDENTIALS, credential);
         });
 
-        if (ssl) {
+        if (cfg.getSSL()) {
             jmxEnv.put(Context.SECURITY_PROTOCOL, "ssl");
             SslRMIClientSocketFactory clientSocketFactory = new SslRMIClientSocketFactory();
             jmxEnv.put(RMIConnectorServer.RMI_CLIENT_SOCKET_FACTORY_ATTRIBUTE, clientSocketFactory);
             jmxEnv.put("com.sun.jndi.rmi.factory.socket", clientSocketFactory);
         }
+
+        final AtomicInteger count = new AtomicInteger();
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(JMX_THREADS, JMX_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "cassandra-exporter-jmx-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Cycles are seconds apart, the threads only live through the ones slower than a minute
+        executor.allowCoreThreadTimeOut(true);
+        this.jmxExecutor = executor;
+
+        this.aggregator = new Aggregator(cfg.getAggregations());
+        this.guard = new CardinalityGuard(cfg.getSeriesBudgets());
+        this.snapshotPath = cfg.getSnapshotPath();
+        this.snapshotValues = cfg.getSnapshotValues();
+        this.snapshotIntervalMs = cfg.getSnapshotIntervalInSec() * 1000L;
+        snapshotPath.flatMap(DiscoverySnapshot::load).ifPresent(this::restore);
+    }
+
+    /**
+     * Index of the exported series, to serve them filtered by tier, keyspace or name
+     */
+    SeriesIndex series() {
+        return series;
+    }
+
+    /**
+     * Stop the threads calling the node, once the scraper is not run anymore
+     */
+    void close() {
+        jmxExecutor.shutdownNow();
+    }
+
+    /**
+     * Progress of the startup, the exporter being ready once the fastest tier has been scraped entirely
+     */
+    Startup startup() {
+        return startup;
+    }
+
+    /**
+     * Push the series of each tier to a remote write endpoint once it has been scraped, on top of serving them
+     */
+    void pushTo(RemoteWriter writer) {
+        this.remoteWriter = Optional.of(writer);
+    }
+
+    /**
+     * Keep the recent samples of each tier once it has been scraped, to backfill Prometheus after an outage
+     */
+    void bufferTo(SampleBuffer buffer) {
+        this.sampleBuffer = Optional.of(buffer);
+    }
+
+    Optional<SampleBuffer> sampleBuffer() {
+        return sampleBuffer;
+    }
+
+    /**
+     * Identify the scrap rules in use, as a plan compiled with other rules cannot be trusted
+     */
+    private int rulesFingerprint() {
+        return Objects.hash(rules.blacklist.toString(), rules.scrapFrequencies.toString(), rules.countersOnly, rules.computeRates);
+    }
+
+    /**
+     * Warm up the caches and the metrics page from a previous run.
+     * Restored values are served as is until the first complete scrap cycle refreshes or evicts them
+     */
+    private void restore(DiscoverySnapshot snapshot) {
+        mBeansAttributesCache.putAll(snapshot.attributes);
+        mBeansDurationUnits.putAll(snapshot.durationUnits);
+        if (snapshot.rulesFingerprint == rulesFingerprint()) {
+            snapshot.plan.forEach((mBeanName, mBeanInfos) -> {
+                if (structuredLabels) layouts.put(getMetricPath(mBeanName, EMPTY_ATTRIBUTE), StructuredName.Layout.of(mBeanName));
+                mBeanInfos.forEach(mBeanInfo -> mBeanInfo.decoder = decoderFor(mBeanInfo));
+                scrapPlan.put(mBeanName, mBeanInfos.stream().filter(mBeanInfo -> mBeanInfo.decoder != null).collect(toList()));
+            });
+        }
+
+        long age = System.currentTimeMillis() - snapshot.savedAt;
+        Set<List<String>> restored = new HashSet<>();
+        if (age <= rules.scrapFrequencies.lastKey()) {
+            for (DiscoverySnapshot.Sample sample : snapshot.samples) {
+                if (sample.labels.length == 5 + additionalLabelValues.length) {
+                    this.series.set(sample.labels, sample.value);
+                    restored.add(Arrays.asList(sample.labels));
+                }
+            }
+        }
+        restoredSeries = restored;
+        logger.info("Restored {} MBeans and {} metrics from a snapshot taken {}s ago", scrapPlan.size(), restored.size(), age / 1000);
+    }
+
+    private void saveSnapshot(Path path, long now) {
+        List<DiscoverySnapshot.Sample> samples = new ArrayList<>();
+        if (snapshotValues) {
+            this.stats.collect()
+                    .stream()
+                    .flatMap(metrics -> metrics.samples.stream())
+                    .forEach(sample -> samples.add(new DiscoverySnapshot.Sample(sample.labelValues.toArray(new String[0]), sample.value)));
+        }
+
+        lastSnapshot = now;
+        planChanged = false;
+        try {
+            new DiscoverySnapshot(now, rulesFingerprint(), mBeansAttributesCache, mBeansDurationUnits, scrapPlan, samples).save(path);
+        } catch (Exception e) {
+            logger.warn("Cannot save discovery snapshot to {}", path, e);
+        }
     }
 
     /**
      * Convert a Cassandra EstimatedHistogram value into known percentiles histogram
      *
-     * @param counts the serialized value of the estimatedhistrogram
+     * @param counts     the serialized value of the estimatedhistrogram
+     * @param unitFactor factor converting the bucket offsets to the unit of the percentiles
      * @return Percentiles of the histogram in the given order double[]{0.5, 0.75, 0.95, 0.98, 0.99};
      */
-    private static double[] metricPercentilesAsArray(long[] counts) {
+    private static double[] metricPercentilesAsArray(long[] counts, double unitFactor) {
         // Copy-pasted mostly from https://github.com/apache/cassandra/blob/f59df2893b66b3a8715b9792679e51815982a542/src/java/org/apache/cassandra/tools/NodeProbe.java#L1223
         double[] result = new double[7];
 
@@ -101,71 +266,144 @@ public class JmxScraper {
         }
         result[5] = metric.min();
         result[6] = metric.max();
+        for (int i = 0; i < result.length; i++)
+            result[i] *= unitFactor;
         return result;
     }
 
-    private void updateStats(NodeInfo nodeInfo, String metricName, Double value) {
+    private void updateStats(NodeInfo nodeInfo, String metricName, double value) {
+        String[] tablePath = tablePaths.computeIfAbsent(metricName, JmxScraper::tablePathOf);
+        String keyspace = "";
+        String table = "";
+        if (tablePath.length == 1 && nodeInfo.keyspaces.contains(tablePath[0])) {
+            keyspace = tablePath[0];
+        } else if (tablePath.length == 2 && nodeInfo.keyspaces.contains(tablePath[0]) && nodeInfo.tables.contains(tablePath[1])) {
+            keyspace = tablePath[0];
+            table = tablePath[1];
+        }
+        setStat(concat(new String[]{nodeInfo.clusterName, nodeInfo.datacenterName, keyspace, table, metricName}, additionalLabelValues), value);
+    }
 
+    /**
+     * Split the keyspace and table out of a metric name, to label its series with them when they exist
+     *
+     * @return {keyspace} for keyspace metrics, {keyspace, table} for table metrics, or nothing
+     */
+    private static String[] tablePathOf(String metricName) {
         if (metricName.startsWith("org:apache:cassandra:metrics:keyspace:")) {
             int pathLength = "org:apache:cassandra:metrics:keyspace:".length();
             int pos = metricName.indexOf(':', pathLength);
-            String keyspaceName = metricName.substring(pathLength, pos);
-
-            this.stats.labels(concat(new String[] {nodeInfo.clusterName, nodeInfo.datacenterName,
-                    nodeInfo.keyspaces.contains(keyspaceName) ? keyspaceName : "", "", metricName}, this.additionalLabelValues)).set(value);
-            return;
+            return new String[]{metricName.substring(pathLength, pos)};
         }
 
-        // Cassandra 3.x path style to get table info
-        if (metricName.startsWith("org:apache:cassandra:metrics:table:")) {
-            int pathLength = "org:apache:cassandra:metrics:table:".length();
-            int keyspacePos = metricName.indexOf(':', pathLength);
+        // Cassandra 3.x path style, Cassandra 2.x path style and pending compactions, all followed by keyspace:table
+        for (String path : new String[]{"org:apache:cassandra:metrics:table:", "org:apache:cassandra:metrics:columnfamily:", "org:apache:cassandra:metrics:compaction:pendingtasksbytablename:"}) {
+            if (!metricName.startsWith(path)) continue;
+
+            int keyspacePos = metricName.indexOf(':', path.length());
             int tablePos = metricName.indexOf(':', keyspacePos + 1);
-            String keyspaceName = metricName.substring(pathLength, keyspacePos);
+            String keyspaceName = metricName.substring(path.length(), keyspacePos);
             String tableName = tablePos > 0 ? metricName.substring(keyspacePos + 1, tablePos) : "";
+            return new String[]{keyspaceName, tableName};
+        }
+        return new String[0];
+    }
 
-            if (nodeInfo.keyspaces.contains(keyspaceName) && nodeInfo.tables.contains(tableName)) {
-                this.stats.labels(concat(new String[] {nodeInfo.clusterName, nodeInfo.datacenterName, keyspaceName, tableName, metricName}, additionalLabelValues)).set(value);
-                return;
-            }
+    /**
+     * Structured name of a series, from the layout of the MBean its metric comes from, or of the source of a rollup
+     *
+     * @return the structured name, or null if its MBean has not been discovered yet
+     */
+    private StructuredName structuredName(List<String> labels) {
+        String metricName = labels.get(4);
+        String rollupSource = rollupSources.get(metricName);
+        String sourceName = rollupSource == null ? metricName : rollupSource;
+        for (int pos = sourceName.lastIndexOf(':'); pos > 0; pos = sourceName.lastIndexOf(':', pos - 1)) {
+            StructuredName.Layout layout = layouts.get(sourceName.substring(0, pos + 1));
+            if (layout != null) return layout.name(labelNames, labels, sourceName.substring(pos + 1), rollupSource != null);
         }
+        return null;
+    }
 
-        // Cassandra 2.x path style to get table info
-        if (metricName.startsWith("org:apache:cassandra:metrics:columnfamily:")) {
-            int pathLength = "org:apache:cassandra:metrics:columnfamily:".length();
-            int keyspacePos = metricName.indexOf(':', pathLength);
-            int tablePos = metricName.indexOf(':', keyspacePos + 1);
-            String keyspaceName = metricName.substring(pathLength, keyspacePos);
-            String tableName = tablePos > 0 ? metricName.substring(keyspacePos + 1, tablePos) : "";
+    private void setStat(String[] labels, double value) {
+        this.series.set(labels, value);
+        if (!restoredSeries.isEmpty()) {
+            restoredSeries.remove(Arrays.asList(labels));
+        }
+    }
 
-            if (nodeInfo.keyspaces.contains(keyspaceName) && nodeInfo.tables.contains(tableName)) {
-                this.stats.labels(concat(new String[] {nodeInfo.clusterName, nodeInfo.datacenterName, keyspaceName, tableName, metricName}, additionalLabelValues)).set(value);
-                return;
+    /**
+     * Remove the restored metrics that the first complete scrap cycle did not refresh, as they don't exist anymore
+     */
+    private void removeRestoredMetrics() {
+        restoredSeries.forEach(labels -> this.series.remove(labels.toArray(new String[0])));
+        restoredSeries = Collections.emptySet();
+    }
+
+    /**
+     * Apply the series budgets: rank the tables when needed, and remove the series of the tables that have just been folded
+     */
+    private void updateBudgets(NodeInfo nodeInfo, long now) {
+        removeRollups(nodeInfo, guard.retain(nodeInfo.keyspaces, nodeInfo.tables));
+        if (!guard.needsRanking() && !isDue(rules.scrapFrequencies.lastKey(), now)) return;
+
+        for (CardinalityGuard.Member member : guard.rank()) {
+            for (String metricName : member.exportedNames) {
+                this.series.remove(concat(new String[]{nodeInfo.clusterName, nodeInfo.datacenterName, member.keyspace, member.table, metricName}, additionalLabelValues));
             }
         }
+    }
 
+    private void removeRollups(NodeInfo nodeInfo, List<Aggregator.Rollup> rollups) {
+        for (Aggregator.Rollup rollup : rollups) {
+            if (rollup.exportedNames == null) continue;
+            for (String metricName : rollup.exportedNames) {
+                if (metricName != null) this.series.remove(rollupLabels(nodeInfo, rollup, metricName));
+            }
+        }
+    }
 
-        if (metricName.startsWith("org:apache:cassandra:metrics:compaction:pendingtasksbytablename:")) {
-            int pathLength = "org:apache:cassandra:metrics:compaction:pendingtasksbytablename:".length();
-            int keyspacePos = metricName.indexOf(':', pathLength);
-            int tablePos = metricName.indexOf(':', keyspacePos + 1);
-            String keyspaceName = metricName.substring(pathLength, keyspacePos);
-            String tableName = tablePos > 0 ? metricName.substring(keyspacePos + 1, tablePos) : "";
+    /**
+     * Export the rollups that changed during the cycle, and remove the ones of dropped keyspaces/tables
+     */
+    private void updateRollups(NodeInfo nodeInfo, Aggregator aggregator) {
+        removeRollups(nodeInfo, aggregator.retain(nodeInfo.keyspaces, nodeInfo.tables));
+
+        for (Aggregator.Rollup rollup : aggregator.rollups()) {
+            if (!rollup.dirty) continue;
+            rollup.dirty = false;
+
+            if (rollup.exportedNames == null) {
+                String[] metricNames = rollup.buckets == null ? new String[]{rollup.metricName} : histogramMetricNames(rollup.metricName);
+                String[] sourceNames = rollup.buckets == null ? new String[]{rollup.sourceName} : histogramMetricNames(rollup.sourceName);
+                for (int i = 0; i < metricNames.length; i++) {
+                    if (scrapFrequency(metricNames[i]) == NEVER) metricNames[i] = null;
+                    else if (structuredLabels) rollupSources.put(metricNames[i], sourceNames[i]);
+                }
+                rollup.exportedNames = metricNames;
+            }
 
-            if (nodeInfo.keyspaces.contains(keyspaceName) && nodeInfo.tables.contains(tableName)) {
-                this.stats.labels(concat(new String[]{nodeInfo.clusterName, nodeInfo.datacenterName, keyspaceName, tableName, metricName}, additionalLabelValues)).set(value);
-                return;
+            if (rollup.buckets == null) {
+                if (rollup.exportedNames[0] != null) setStat(rollupLabels(nodeInfo, rollup, rollup.exportedNames[0]), rollup.sum);
+                continue;
+            }
+            double[] percentiles = metricPercentilesAsArray(rollup.buckets, rollup.unitFactor);
+            for (int i = 0; i < rollup.exportedNames.length; i++) {
+                if (rollup.exportedNames[i] != null) setStat(rollupLabels(nodeInfo, rollup, rollup.exportedNames[i]), percentiles[i]);
             }
         }
+    }
 
-
-        this.stats.labels(concat(new String[]{nodeInfo.clusterName, nodeInfo.datacenterName, "", "", metricName}, additionalLabelValues)).set(value);
+    private String[] rollupLabels(NodeInfo nodeInfo, Aggregator.Rollup rollup, String metricName) {
+        return concat(new String[]{nodeInfo.clusterName, nodeInfo.datacenterName, rollup.keyspace, rollup.table, metricName}, additionalLabelValues);
     }
 
     private Boolean shouldRemove(NodeInfo nodeInfo, Collector.MetricFamilySamples.Sample sample) {
         String keyspace = sample.labelValues.get(2);
         String table = sample.labelValues.get(3);
-        return (!"".equals(keyspace) && !nodeInfo.keyspaces.contains(keyspace)) || (!"".equals(table) && !nodeInfo.tables.contains(table));
+        // The other table of the series budgets is not a real table, it is maintained by the guard itself
+        return (!"".equals(keyspace) && !nodeInfo.keyspaces.contains(keyspace))
+                || (!"".equals(table) && !CardinalityGuard.OTHER.equals(table) && !nodeInfo.tables.contains(table));
     }
 
 
@@ -173,84 +411,339 @@ public class JmxScraper {
      * Remove metrics for drop keyspaces/tables
      */
     private void removeMetrics(NodeInfo nodeInfo) {
-        this.stats.collect()
+        final Tracer.Span span = Tracer.INSTANCE.start(Tracer.Kind.STALE_SWEEP);
+        final List<String[]> stale = this.stats.collect()
                 .stream()
                 .flatMap(metrics -> metrics.samples.stream())
                 .filter(sample -> shouldRemove(nodeInfo, sample))
-                .forEach(sample -> this.stats.remove(sample.labelValues.toArray(new String[0])));
+                .map(sample -> sample.labelValues.toArray(new String[0]))
+                .collect(toList());
+        stale.forEach(this.series::remove);
+        stale.forEach(labels -> tablePaths.remove(labels[4]));
+        span.end(nodeInfo.clusterName, nodeInfo.datacenterName, stale.size());
     }
 
     public void run(final boolean forever) throws Exception {
-
-        this.stats.clear();
         try (JMXConnector jmxc = JMXConnectorFactory.connect(new JMXServiceURL(jmxUrl), jmxEnv)) {
-            final MBeanServerConnection beanConn = jmxc.getMBeanServerConnection();
+            run(jmxc.getMBeanServerConnection(), forever, Optional.empty());
+        }
+    }
+
+    /**
+     * Scrap the given MBean server, either a remote one or the platform one when running as an agent
+     *
+     * @param throttle caps the CPU used by the scraping thread, paced after each MBean
+     */
+    void run(final MBeanServerConnection beanConn, final boolean forever, final Optional<CpuThrottle> throttle) throws Exception {
+
+        // Keep the metrics restored from the snapshot around until the first cycle replaces them
+        if (restoredSeries.isEmpty()) this.series.clear();
+        do {
+            final long now = System.currentTimeMillis();
+            if (throttle.isPresent()) throttle.get().start();
+            final Tracer.Span cycleSpan = Tracer.INSTANCE.start(Tracer.Kind.CYCLE);
+            // Attributes fetched per due scrap frequency
+            final Map<Integer, int[]> fetched = new HashMap<>();
+            Optional<NodeInfo> nodeInfo = Optional.empty();
+            final long duration;
+            try {
+                final ScrapRules newRules = pendingRules.getAndSet(null);
+                if (newRules != null) applyRules(beanConn, newRules);
 
-            do {
-                final long now = System.currentTimeMillis();
+                for (Integer frequency : lastScrapes.keySet()) {
+                    if (!isDue(frequency, now)) continue;
+                    fetched.put(frequency, new int[1]);
+                }
 
                 // If we can't get the node info, exit the run early in order to avoid creating stale metrics
                 // that will never be cleaned after that
                 // This situation can appear if the node start to be unresponsive and that some jmx operation timeouts
-                final Optional<NodeInfo> nodeInfo = NodeInfo.getNodeInfo(beanConn);
+                nodeInfo = NodeInfo.getNodeInfo(beanConn);
                 if (!nodeInfo.isPresent()) return;
+                startup.completed(Startup.Phase.NODE_INFO);
+
+                final Set<ObjectName> mBeanNames = beanConn.queryNames(null, null);
+                planChanged |= scrapPlan.keySet().retainAll(mBeanNames);
+                if (layouts.size() > scrapPlan.size()) layouts.values().removeIf(layout -> !mBeanNames.contains(layout.mBeanName));
+
+                // The few node-level MBeans are discovered and served first, the ones of the keyspaces and tables are far more numerous
+                final Map<Boolean, List<ObjectName>> byTable = mBeanNames.stream().collect(partitioningBy(JmxScraper::isTableMBean));
+                scrap(beanConn, byTable.get(false), frequency -> true, nodeInfo.get(), now, fetched, throttle);
+                series.publish();
+                startup.completed(Startup.Phase.NODE_MBEANS);
+
+                discover(beanConn, byTable.get(true), throttle);
+                startup.completed(Startup.Phase.TABLE_DISCOVERY);
+
+                // Then the tables, fastest tier first, so the metrics refreshed the most often are complete as soon as possible
+                for (Integer tier : new TreeSet<>(fetched.keySet())) {
+                    final Tracer.Span tierSpan = Tracer.INSTANCE.start(Tracer.Kind.TIER);
+                    final int fetchedBefore = fetched.get(tier)[0];
+                    try {
+                        scrap(beanConn, byTable.get(true), frequency -> frequency == tier, nodeInfo.get(), now, fetched, throttle);
+                    } finally {
+                        tierSpan.end(tier / 1000, "", fetched.get(tier)[0] - fetchedBefore);
+                    }
+                    if (tier.equals(rules.scrapFrequencies.firstKey())) {
+                        series.publish();
+                        startup.completed(Startup.Phase.FASTEST_TIER);
+                    }
+                }
 
-                MBeanAttributeInfo attr = new MBeanAttributeInfo("", "", "", false, false, false);
-                beanConn.queryMBeans(null, null).stream()
-                        .map(objectInstance -> new MBeanInfo(getMetricPath(objectInstance.getObjectName(), attr), objectInstance.getObjectName(), attr))
-                        .filter(mbean -> blacklist.stream().noneMatch(pattern -> pattern.matcher(mbean.metricName).matches()))
-                        .flatMap(mBeanInfo -> toMBeanInfos(beanConn, mBeanInfo))
-                        .filter(m -> shouldScrap(m, now))
-                        .forEach(mBean -> updateMetric(beanConn, mBean, nodeInfo.get()));
-
+                updateBudgets(nodeInfo.get(), now);
+                updateRollups(nodeInfo.get(), aggregator);
+                updateRollups(nodeInfo.get(), guard.others());
+                removeRollups(nodeInfo.get(), withdrawnRollups);
+                withdrawnRollups.clear();
                 removeMetrics(nodeInfo.get());
+                removeRestoredMetrics();
+                series.publish();
+                startup.completed(Startup.Phase.FIRST_CYCLE);
+
+                // Tiers are all complete once the rollups are up to date
+                remoteWriter.ifPresent(writer -> fetched.keySet().forEach(frequency -> writer.tierScraped(frequency, now)));
+                sampleBuffer.ifPresent(buffer -> fetched.keySet().forEach(frequency -> buffer.tierScraped(frequency, now)));
 
                 lastScrapes.forEach((k, lastScrape) -> {
                     if (now - lastScrape >= k) lastScrapes.put(k, now);
                 });
 
-                final long duration = System.currentTimeMillis() - now;
+                duration = System.currentTimeMillis() - now;
                 logger.info("Scrap took {}ms for the whole run", duration);
+            } finally {
+                // Also ended when the cycle is cut short, by a failure or an unresponsive node
+                cycleSpan.end(nodeInfo.map(info -> info.clusterName).orElse(""), nodeInfo.map(info -> info.datacenterName).orElse(""),
+                        fetched.values().stream().mapToInt(count -> count[0]).sum());
+            }
+
+            // Writing the whole plan and the values is not worth it every cycle
+            if (snapshotPath.isPresent() && (planChanged || now - lastSnapshot >= snapshotIntervalMs)) {
+                saveSnapshot(snapshotPath.get(), now);
+            }
+
+            // don't go lower than 10 sec
+            if (forever) Thread.sleep(Math.max(rules.scrapFrequencies.firstKey() - duration, 10 * 1000));
+        } while (forever);
+    }
+
+    /**
+     * Scrap the due attributes of the given MBeans whose frequency matches, discovering the MBeans not in the plan yet.
+     * <p>
+     * Unless throttled, the attributes of the next MBeans are fetched in parallel while the ones of the current MBean
+     * are decoded, as a JMX call mostly waits for the node. They are decoded on the scraping thread, in order, as the
+     * decoders share the aggregator and the cardinality guard.
+     *
+     * @param fetched attributes fetched per due scrap frequency, updated with the ones fetched here
+     */
+    private void scrap(MBeanServerConnection beanConn, List<ObjectName> mBeanNames, IntPredicate frequencies, NodeInfo nodeInfo, long now, Map<Integer, int[]> fetched, Optional<CpuThrottle> throttle) throws InterruptedException, ExecutionException {
+        final boolean parallel = !throttle.isPresent() && mBeanNames.size() > 1;
+        final Deque<Fetch> window = new ArrayDeque<>();
+        for (ObjectName mBeanName : mBeanNames) {
+            final List<MBeanInfo> mBeanInfos = scrapPlan.computeIfAbsent(mBeanName, name -> {
+                planChanged = true;
+                return toMBeanInfos(beanConn, name);
+            });
+            if (mBeanInfos == null) continue;
+
+            final List<MBeanInfo> due = new ArrayList<>(mBeanInfos.size());
+            for (MBeanInfo mBean : mBeanInfos) {
+                if (mBean.decoder != null && isDue(mBean.frequency, now) && frequencies.test(mBean.frequency)) due.add(mBean);
+            }
+
+            if (parallel) {
+                if (due.isEmpty()) continue;
+                window.add(new Fetch(mBeanName, mBeanInfos, due, jmxExecutor.submit(() -> fetch(beanConn, due))));
+                if (window.size() > FETCH_WINDOW) decode(window.poll(), nodeInfo, now, fetched);
+            } else {
+                decode(new Fetch(mBeanName, mBeanInfos, due, CompletableFuture.completedFuture(fetch(beanConn, due))), nodeInfo, now, fetched);
+                if (throttle.isPresent()) throttle.get().pace();
+            }
+        }
+        while (!window.isEmpty()) {
+            decode(window.poll(), nodeInfo, now, fetched);
+        }
+    }
+
+    /**
+     * Decode the fetched attributes of a MBean, on the scraping thread
+     */
+    private void decode(Fetch fetch, NodeInfo nodeInfo, long now, Map<Integer, int[]> fetched) throws InterruptedException, ExecutionException {
+        final Object[] values = fetch.values.get();
+        boolean hasUnknownTypes = false;
+        for (int i = 0; i < values.length; i++) {
+            final MBeanInfo mBean = fetch.due.get(i);
+            updateMetric(mBean, values[i], nodeInfo, now);
+            fetched.get(mBean.frequency)[0]++;
+            hasUnknownTypes |= mBean.decoder == null;
+        }
+
+        // Remember attributes of unknown types by removing them from the plan, so they are not fetched anymore
+        if (hasUnknownTypes) {
+            scrapPlan.replace(fetch.mBeanName, fetch.mBeanInfos, fetch.mBeanInfos.stream().filter(mBean -> mBean.decoder != null).collect(toList()));
+        }
+    }
+
+    /**
+     * The due attributes of a MBean of the plan, and their values once fetched
+     */
+    private static final class Fetch {
+        final ObjectName mBeanName;
+        final List<MBeanInfo> mBeanInfos;
+        final List<MBeanInfo> due;
+        final Future<Object[]> values;
+
+        Fetch(ObjectName mBeanName, List<MBeanInfo> mBeanInfos, List<MBeanInfo> due, Future<Object[]> values) {
+            this.mBeanName = mBeanName;
+            this.mBeanInfos = mBeanInfos;
+            this.due = due;
+            this.values = values;
+        }
+    }
+
+    /**
+     * Add the given MBeans to the scrap plan, if they are not in it already.
+     * <p>
+     * Unless throttled, the MBeans are inspected in parallel, which is matching their attributes against the rules and
+     * fetching the attributes of the few shapes not seen yet. Their decoders are bound afterwards, on the scraping
+     * thread, as they share the aggregator and the cardinality guard.
+     */
+    private void discover(MBeanServerConnection beanConn, List<ObjectName> mBeanNames, Optional<CpuThrottle> throttle) throws InterruptedException, ExecutionException {
+        final List<ObjectName> undiscovered = mBeanNames.stream().filter(name -> !scrapPlan.containsKey(name)).collect(toList());
+        if (undiscovered.isEmpty()) return;
+        planChanged = true;
+
+        final long start = System.currentTimeMillis();
+        if (throttle.isPresent() || undiscovered.size() == 1) {
+            for (ObjectName mBeanName : undiscovered) {
+                scrapPlan.computeIfAbsent(mBeanName, name -> toMBeanInfos(beanConn, name));
+                if (throttle.isPresent()) throttle.get().pace();
+            }
+        } else {
+            final List<Future<List<MBeanInfo>>> inspections = new ArrayList<>(undiscovered.size());
+            for (ObjectName mBeanName : undiscovered) {
+                inspections.add(jmxExecutor.submit(() -> inspect(beanConn, mBeanName)));
+            }
+            for (int i = 0; i < undiscovered.size(); i++) {
+                final List<MBeanInfo> mBeanInfos = withDecoders(inspections.get(i).get());
+                if (mBeanInfos != null) scrapPlan.put(undiscovered.get(i), mBeanInfos);
+            }
+        }
+        logger.info("Discovered {} MBeans in {}ms", undiscovered.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Return if a MBean belongs to a keyspace or a table, rather than to the whole node
+     */
+    static boolean isTableMBean(ObjectName mBeanName) {
+        return mBeanName.getKeyProperty("keyspace") != null;
+    }
+
+    /**
+     * Validate the scrap rules of a new config, and schedule them to replace the current ones at the beginning of the next cycle.
+     * Only blacklist, maxScrapFrequencyInSec, countersOnly and computeRates are reloaded, the other settings need a restart
+     *
+     * @return False if the scrap rules of the config are invalid, and have been ignored
+     */
+    public boolean reload(Config cfg) {
+        try {
+            pendingRules.set(new ScrapRules(cfg.getBlacklist(), cfg.getMaxScrapFrequencyInSec(), cfg.getCountersOnly(), cfg.getComputeRates()));
+            return true;
+        } catch (RuntimeException e) {
+            logger.error("Ignoring the new config as its scrap rules are invalid", e);
+            return false;
+        }
+    }
 
-                // don't go lower than 10 sec
-                if (forever) Thread.sleep(Math.max(scrapFrequencies.firstKey() - duration, 10 * 1000));
-            } while (forever);
+    /**
+     * Replace the scrap rules, and reclassify the already discovered MBeans with them.
+     * The JMX connection, the attributes cache and the series still scraped are kept, the others are removed
+     */
+    private void applyRules(MBeanServerConnection beanConn, ScrapRules newRules) {
+        final long start = System.currentTimeMillis();
+        this.rules = newRules;
+
+        Map<Integer, Long> previousScrapes = lastScrapes;
+        lastScrapes = new HashMap<>(newRules.scrapFrequencies.size());
+        newRules.scrapFrequencies.keySet().forEach(frequency -> lastScrapes.put(frequency, previousScrapes.getOrDefault(frequency, 0L)));
+
+        Map<ObjectName, List<MBeanInfo>> plan = new HashMap<>(scrapPlan.size() * 2);
+        for (ObjectName mBeanName : scrapPlan.keySet()) {
+            List<MBeanInfo> mBeanInfos = toMBeanInfos(beanConn, mBeanName);
+            if (mBeanInfos != null) plan.put(mBeanName, mBeanInfos);
         }
+        scrapPlan.clear();
+        scrapPlan.putAll(plan);
+        planChanged = true;
+
+        // The metrics not scraped anymore must not weigh on the rollups and the budgets with their last value
+        Set<String> scraped = plan.values().stream().flatMap(List::stream).map(mBeanInfo -> mBeanInfo.metricName).collect(toSet());
+        withdrawnRollups.addAll(aggregator.retainMetrics(scraped));
+        withdrawnRollups.addAll(guard.retainMetrics(scraped));
+        aggregator.rollups().forEach(rollup -> rollup.exportedNames = null);
+        guard.others().rollups().forEach(rollup -> rollup.exportedNames = null);
+        List<String[]> unscraped = series.retier();
+        unscraped.forEach(series::remove);
+
+        logger.info("Reloaded the scrap rules in {}ms, {} MBeans reclassified and {} metrics not scraped anymore removed",
+                System.currentTimeMillis() - start, plan.size(), unscraped.size());
     }
 
     /**
-     * Return if we should scrap this MBean at a given point in time
+     * Return if we should scrap a metric of the given frequency at a given point in time
      *
-     * @param mBeanInfo Should we scrap this MBean
+     * @param frequency the scrap frequency of the metric
      * @param now       timestamp representing the point in time
      * @return True if we should scrap it, False if not
      */
-    private boolean shouldScrap(final MBeanInfo mBeanInfo, final long now) {
-        if (blacklist.stream().anyMatch(pattern -> pattern.matcher(mBeanInfo.metricName).matches())) {
-            return false;
+    private boolean isDue(final int frequency, final long now) {
+        return frequency != NEVER && now - lastScrapes.get(frequency) >= frequency;
+    }
+
+    /**
+     * Return the scrap frequency of a metric, the biggest one it matches, or NEVER if it must not be scraped
+     */
+    private int scrapFrequency(final String metricName) {
+        if (rules.blacklist.stream().anyMatch(pattern -> pattern.matcher(metricName).matches())) {
+            return NEVER;
         }
 
-        for (Map.Entry<Integer, List<Pattern>> e : scrapFrequencies.descendingMap().entrySet()) {
+        for (Map.Entry<Integer, List<Pattern>> e : rules.scrapFrequencies.descendingMap().entrySet()) {
             for (Pattern p : e.getValue()) {
-                if (p.matcher(mBeanInfo.metricName).matches()) {
-                    return now - lastScrapes.get(e.getKey()) >= e.getKey();
+                if (p.matcher(metricName).matches()) {
+                    return e.getKey();
                 }
             }
         }
-        return false;
+        return NEVER;
     }
 
     /**
-     * Return all possible MbeanInfo from a MBean path.
-     * The main interest is to unroll of the attributes of an Mbeans in order to filter on it
+     * Return the scrap plan of a MBean: all the MbeanInfo of its attributes that should be scraped, with their frequency.
+     * The main interest is to unroll of the attributes of an Mbeans in order to filter on it only once
      *
      * @param beanConn The JMX connexion
+     * @return the MBeanInfos to scrap, or null if the MBean could not be inspected
+     */
+    private List<MBeanInfo> toMBeanInfos(MBeanServerConnection beanConn, ObjectName mbeanName) {
+        return withDecoders(inspect(beanConn, mbeanName));
+    }
+
+    /**
+     * Return the attributes of a MBean that should be scraped with their frequency, but without their decoder yet.
+     * It only reads the rules and the caches shared by the threads, so MBeans can be inspected in parallel
+     *
+     * @return the MBeanInfos to scrap, or null if the MBean could not be inspected
      */
-    private Stream<MBeanInfo> toMBeanInfos(MBeanServerConnection beanConn, MBeanInfo mBeanInfo) {
+    private List<MBeanInfo> inspect(MBeanServerConnection beanConn, ObjectName mbeanName) {
+        final String mBeanPath = getMetricPath(mbeanName, EMPTY_ATTRIBUTE);
+        if (rules.blacklist.stream().anyMatch(pattern -> pattern.matcher(mBeanPath).matches())) {
+            return Collections.emptyList();
+        }
+
+        final Tracer.Span span = Tracer.INSTANCE.start(Tracer.Kind.DISCOVERY);
+        if (structuredLabels) layouts.computeIfAbsent(mBeanPath, path -> StructuredName.Layout.of(mbeanName));
         try {
-            ObjectName mbeanName = mBeanInfo.mBeanName;
-            String name = "" + mbeanName.getKeyPropertyList().size() + mbeanName.getKeyProperty("type") + mbeanName.getKeyProperty("name");
-            MBeanAttributeInfo[] info = mBeansAttributesCache.computeIfAbsent(name, xx -> {
+            MBeanAttributeInfo[] info = mBeansAttributesCache.computeIfAbsent(attributesCacheKey(mbeanName), xx -> {
                 try {
                     return beanConn.getMBeanInfo(mbeanName).getAttributes();
                 } catch (Exception e) {
@@ -258,16 +751,121 @@ public class JmxScraper {
                 }
             });
 
-            return Arrays.stream(info)
-                    .filter(MBeanAttributeInfo::isReadable)
-                    //TODO: Refactor get MetricPath
-                    .map(mBeanAttributeInfo -> new MBeanInfo(mBeanInfo.metricName + mBeanAttributeInfo.getName().toLowerCase(), mbeanName, mBeanAttributeInfo));
+            List<MBeanInfo> mBeanInfos = new ArrayList<>();
+            // The buckets of a timer can only be used once the unit of its percentiles is known
+            if (rules.countersOnly) info = counterAttributes(info, !isTimer(info) || durationUnit(beanConn, mbeanName) != null);
+            for (MBeanAttributeInfo mBeanAttributeInfo : info) {
+                if (!mBeanAttributeInfo.isReadable()) continue;
+
+                //TODO: Refactor get MetricPath
+                String metricName = mBeanPath + mBeanAttributeInfo.getName().toLowerCase();
+                int frequency = scrapFrequency(metricName);
+                if (frequency == NEVER) continue;
+
+                mBeanInfos.add(new MBeanInfo(metricName, mbeanName, mBeanAttributeInfo, frequency));
+            }
+            span.end(mbeanName, "", mBeanInfos.size());
+            return mBeanInfos;
         } catch (Exception e) {
-            logger.error(" Error when scraping mbean {}", mBeanInfo.mBeanName, e);
-            return Stream.empty();
+            logger.error(" Error when scraping mbean {}", mbeanName, e);
+            span.end(mbeanName, e.toString(), 0);
+            return null;
+        }
+    }
+
+    /**
+     * Bind the attributes of a MBean to their decoder, leaving out the ones of unknown types
+     */
+    private List<MBeanInfo> withDecoders(List<MBeanInfo> mBeanInfos) {
+        if (mBeanInfos == null) return null;
+        mBeanInfos.forEach(mBeanInfo -> mBeanInfo.decoder = decoderFor(mBeanInfo));
+        return mBeanInfos.stream().filter(mBeanInfo -> mBeanInfo.decoder != null).collect(toList());
+    }
+
+    /**
+     * Keep only the attributes of Meter, Timer and Histogram MBeans that cannot be derived from the others.
+     * Rates are left out, as they can be computed from the Count, and percentiles are computed from the buckets
+     * when Cassandra exposes them, in which case the 999thPercentile, Mean and StdDev are left out too.
+     * The other MBeans are left untouched.
+     *
+     * @param withBuckets False to keep the percentiles of the MBean rather than its buckets
+     */
+    static MBeanAttributeInfo[] counterAttributes(MBeanAttributeInfo[] info, boolean withBuckets) {
+        Set<String> names = Arrays.stream(info).map(MBeanAttributeInfo::getName).collect(toSet());
+        boolean meter = names.contains("Count") && names.containsAll(RATE_ATTRIBUTES);
+        boolean histogram = names.contains("Count") && names.contains("50thPercentile");
+        if (!meter && !histogram) {
+            return info;
+        }
+
+        MBeanAttributeInfo buckets = !histogram || !withBuckets ? null : BUCKETS_ATTRIBUTES.stream()
+                .flatMap(name -> Arrays.stream(info).filter(attr -> attr.getName().equals(name) && "[J".equals(attr.getType())))
+                .findFirst()
+                .orElse(null);
+        return Arrays.stream(info)
+                .filter(attr -> attr.getName().equals("Count") || attr == buckets || (buckets == null && !RATE_ATTRIBUTES.contains(attr.getName())))
+                .toArray(MBeanAttributeInfo[]::new);
+    }
+
+    /**
+     * Return if an MBean exposes the rates of a Meter, from its cached attributes
+     */
+    private static boolean isMeter(ObjectName mbeanName) {
+        MBeanAttributeInfo[] info = mBeansAttributesCache.get(attributesCacheKey(mbeanName));
+        return info != null && Arrays.stream(info).map(MBeanAttributeInfo::getName).collect(toSet()).containsAll(RATE_ATTRIBUTES);
+    }
+
+    /**
+     * Return if the attributes of a MBean are the ones of a Timer, whose percentiles are durations
+     */
+    private static boolean isTimer(MBeanAttributeInfo[] info) {
+        return Arrays.stream(info).anyMatch(attr -> attr.getName().equals("DurationUnit"));
+    }
+
+    /**
+     * Return the unit of the percentiles of a Timer, fetched once per type of MBean
+     *
+     * @return the unit, or null if it cannot be fetched or is unknown
+     */
+    private static TimeUnit durationUnit(MBeanServerConnection beanConn, ObjectName mbeanName) {
+        String unit = mBeansDurationUnits.computeIfAbsent(attributesCacheKey(mbeanName), key -> {
+            try {
+                return beanConn.getAttribute(mbeanName, "DurationUnit").toString();
+            } catch (Exception e) {
+                logger.warn("Cannot get the duration unit of {}, its percentiles are scraped instead of its buckets", mbeanName, e);
+                return null;
+            }
+        });
+        return toTimeUnit(unit);
+    }
+
+    private static TimeUnit toTimeUnit(String unit) {
+        try {
+            return unit == null ? null : TimeUnit.valueOf(unit.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return null;
         }
     }
 
+    /**
+     * Return the factor converting the bucket offsets of a MBean to the unit of its percentiles. Cassandra records the
+     * durations of its timers in nanoseconds, and converts their percentiles to their DurationUnit
+     *
+     * @return the factor, or null if the MBean is a timer whose unit is not known
+     */
+    private static Double unitFactor(ObjectName mbeanName) {
+        String key = attributesCacheKey(mbeanName);
+        MBeanAttributeInfo[] info = mBeansAttributesCache.get(key);
+        if (info == null || !isTimer(info)) return 1.0;
+
+        TimeUnit unit = toTimeUnit(mBeansDurationUnits.get(key));
+        return unit == null ? null : 1.0 / unit.toNanos(1);
+    }
+
+    private static String attributesCacheKey(ObjectName mbeanName) {
+        return "" + mbeanName.getKeyPropertyList().size() + mbeanName.getKeyProperty("type") + mbeanName.getKeyProperty("name");
+    }
+
     /**
      * Return the formatted metric for a given MBean and attribute
      *
@@ -283,110 +881,186 @@ public class JmxScraper {
     }
 
     /**
-     * Update the metrics registry for a given MBeanInfo
+     * Fetch the values of the given attributes of a MBean. Only calls the node, so it can run on any thread
      *
-     * @param beanConn
-     * @param mBeanInfo
+     * @return the value of each attribute, null if it could not be fetched or VANISHED if it is not in the MBean anymore
      */
-    private void updateMetric(MBeanServerConnection beanConn, MBeanInfo mBeanInfo, NodeInfo nodeInfo) {
+    private static Object[] fetch(MBeanServerConnection beanConn, List<MBeanInfo> mBeanInfos) {
+        final Object[] values = new Object[mBeanInfos.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = fetch(beanConn, mBeanInfos.get(i));
+        }
+        return values;
+    }
+
+    private static Object fetch(MBeanServerConnection beanConn, MBeanInfo mBeanInfo) {
         long start = System.currentTimeMillis();
-        Object value = null;
+        final Tracer.Span span = Tracer.INSTANCE.start(Tracer.Kind.JMX_CALL);
         try {
-            value = beanConn.getAttribute(mBeanInfo.mBeanName, mBeanInfo.attribute.getName());
+            Object value = beanConn.getAttribute(mBeanInfo.mBeanName, mBeanInfo.attribute.getName());
+            span.end(mBeanInfo.mBeanName, mBeanInfo.attribute.getName(), 1);
+            logger.trace("Scrapping took {}ms for {}", (System.currentTimeMillis() - start), mBeanInfo.metricName);
+            return value;
         } catch (Exception e) {
+            span.end(mBeanInfo.mBeanName, mBeanInfo.attribute.getName(), 0);
             if (e instanceof RuntimeMBeanException && e.getCause() != null && e.getCause() instanceof UnsupportedOperationException) {
-                return;
+                return null;
+            }
+            if (e instanceof AttributeNotFoundException) {
+                return VANISHED;
             }
             logger.error("Cannot get value for {} {}", mBeanInfo.metricName, mBeanInfo.attribute.getName(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Update the metrics registry for a given MBeanInfo with its fetched value
+     */
+    private void updateMetric(MBeanInfo mBeanInfo, Object value, NodeInfo nodeInfo, long now) {
+        // The plan may come from a snapshot of an older cassandra version, drop it to rediscover this MBean on next cycle
+        if (value == VANISHED) {
+            logger.debug("Attribute {} vanished from {}, rediscovering it", mBeanInfo.attribute.getName(), mBeanInfo.mBeanName);
+            mBeansAttributesCache.remove(attributesCacheKey(mBeanInfo.mBeanName));
+            scrapPlan.remove(mBeanInfo.mBeanName);
+            planChanged = true;
+            return;
         }
         if (value == null) {
             return;
         }
 
-        // Converting attribute to double
+        mBeanInfo.decoder.decode(value, nodeInfo, now);
+    }
+
+    /**
+     * Return the decoder converting the values of an attribute to metrics, based on the type it declares.
+     *
+     * @return the decoder, or null if the attribute is of an unknown type and should not be scraped
+     */
+    private ValueDecoder decoderFor(MBeanInfo mBeanInfo) {
+        final String metricName = mBeanInfo.metricName;
         switch (mBeanInfo.attribute.getType()) {
             case "long":
+                if (rules.computeRates && rules.countersOnly && mBeanInfo.attribute.getName().equals("Count") && isMeter(mBeanInfo.mBeanName)) {
+                    return new RateDecoder(metricName);
+                }
+                return numberDecoder(metricName);
             case "int":
             case "double":
-                updateStats(nodeInfo, mBeanInfo.metricName, ((Number) value).doubleValue());
-                break;
+                return numberDecoder(metricName);
+
+            // Buckets of Timer and Histogram, only kept in counters only mode
+            case "[J":
+                if (rules.countersOnly && BUCKETS_ATTRIBUTES.contains(mBeanInfo.attribute.getName())) {
+                    Double unitFactor = unitFactor(mBeanInfo.mBeanName);
+                    if (unitFactor != null) return new HistogramDecoder(metricName, unitFactor);
+                    logger.warn("Cannot convert the buckets of {} as its duration unit is not known", mBeanInfo.metricName);
+                    return null;
+                }
+                logger.debug("Cannot parse {} as it as an unknown type {}", mBeanInfo.metricName, mBeanInfo.attribute.getType());
+                return null;
 
             case "boolean":
-                updateStats(nodeInfo, mBeanInfo.metricName, ((Boolean) value) ? 1.0 : 0.0);
-                break;
+                return (value, nodeInfo, now) -> updateStats(nodeInfo, metricName, ((Boolean) value) ? 1.0 : 0.0);
 
             case "java.util.List":
-                updateStats(nodeInfo, mBeanInfo.metricName, Double.valueOf(((List) value).size()));
-                break;
+                return (value, nodeInfo, now) -> updateStats(nodeInfo, metricName, ((List<?>) value).size());
 
             case "javax.management.openmbean.CompositeData":
-                CompositeData data = ((CompositeData) value);
-                CompositeType types = ((CompositeData) value).getCompositeType();
-                for (String itemName : types.keySet()) {
-                    switch (types.getType(itemName).getTypeName()) {
-                        case "java.lang.Long":
-                        case "java.lang.Double":
-                        case "java.lang.Integer":
-                            updateStats(nodeInfo, mBeanInfo.metricName + metricSeparator + itemName.toLowerCase(), ((Number) data.get(itemName)).doubleValue());
-                            break;
-                    }
-                }
-                break;
+                return new CompositeDataDecoder(metricName);
 
             case "java.lang.Object":
-                String str = value.toString();
-                Character first = str.charAt(0);
-
-                //Most beans declared as Object are Double in disguise
-                if (first >= '0' && first <= '9') {
-                    updateStats(nodeInfo, mBeanInfo.metricName, Double.valueOf(str));
-                    
-                } else if (first == '{' && mBeanInfo.metricName.equalsIgnoreCase("org:apache:cassandra:metrics:compaction:pendingtasksbytablename:value")) {
-                    HashMap<String, HashMap<String, Integer>> pendingTasks = (HashMap<String, HashMap<String, Integer>>) value;
-                    for (String keyspace : pendingTasks.keySet()) {
-                        for (String table : pendingTasks.get(keyspace).keySet()) {
-                            String labels = String.join(":", keyspace, table, "value");
-                            String metricName = mBeanInfo.metricName.replace("value", labels);
-                            updateStats(nodeInfo, metricName, pendingTasks.get(keyspace).get(table).doubleValue());
-                        }
-                    }
+                return new ObjectDecoder(mBeanInfo);
 
-                    // https://books.google.fr/books?id=BvsVuph6ehMC&pg=PA82
-                    // EstimatedHistogram are object for JMX but are long[] behind
-                } else if (str.startsWith(long[].class.getName())) {
-
-                    // This is ugly to redo the shouldScrap and metricName formating this late
-                    // but EstimatedHistogram in cassandra are special case that we cannot detect before :(
-                    double[] percentiles = metricPercentilesAsArray((long[]) value);
-                    for (int i = 0; i < offsetPercentiles.length; i++) {
-                        final String metricName = mBeanInfo.metricName.replace(":value", ":" + (int) (offsetPercentiles[i] * 100) + "thpercentile");
-                        MBeanInfo info = new MBeanInfo(metricName, mBeanInfo.mBeanName, mBeanInfo.attribute);
-                        if (shouldScrap(info, start)) {
-                            updateStats(nodeInfo, metricName, percentiles[i]);
-                        }
-                    }
+            default:
+                logger.debug("Cannot parse {} as it as an unknown type {}", mBeanInfo.metricName, mBeanInfo.attribute.getType());
+                return null;
+        }
+    }
 
-                    final String minMetricName = mBeanInfo.metricName.replace(":value", ":min");
-                    MBeanInfo info = new MBeanInfo(minMetricName, mBeanInfo.mBeanName, mBeanInfo.attribute);
-                    if (shouldScrap(info, start)) {
-                        updateStats(nodeInfo, minMetricName, percentiles[5]);
-                    }
-                    final String metricName = mBeanInfo.metricName.replace(":value", ":max");
-                    info = new MBeanInfo(metricName, mBeanInfo.mBeanName, mBeanInfo.attribute);
-                    if (shouldScrap(info, start)) {
-                        updateStats(nodeInfo, metricName, percentiles[6]);
-                    }
+    /**
+     * Return the decoder for attributes declared as Object, based on the real type of their value
+     *
+     * @return the decoder, or null if the value is of an unknown type
+     */
+    private ValueDecoder decoderFor(String metricName, Object value) {
+        //Most beans declared as Object are Double in disguise
+        if (value instanceof Number) {
+            return numberDecoder(metricName);
+        }
 
-                } else {
-                    logger.debug("Cannot parse {} as it as an unknown type {} with value {}", mBeanInfo.mBeanName, mBeanInfo.attribute.getType(), value);
+        // Others hold their number as a string, the values that cannot be parsed anymore are skipped
+        if (value instanceof String && parseDouble((String) value) != null) {
+            final ValueDecoder number = numberDecoder(metricName);
+            return (v, nodeInfo, now) -> {
+                Double parsed = parseDouble((String) v);
+                if (parsed != null) number.decode(parsed, nodeInfo, now);
+            };
+        }
+
+        // https://books.google.fr/books?id=BvsVuph6ehMC&pg=PA82
+        // EstimatedHistogram are object for JMX but are long[] behind
+        if (value instanceof long[]) {
+            return new HistogramDecoder(metricName, 1.0);
+        }
+
+        if (value instanceof Map && metricName.equals("org:apache:cassandra:metrics:compaction:pendingtasksbytablename:value")) {
+            return (v, nodeInfo, now) -> {
+                Map<?, ?> pendingTasks = (Map<?, ?>) v;
+                for (Map.Entry<?, ?> keyspace : pendingTasks.entrySet()) {
+                    for (Map.Entry<?, ?> table : ((Map<?, ?>) keyspace.getValue()).entrySet()) {
+                        String labels = String.join(":", keyspace.getKey().toString(), table.getKey().toString(), "value");
+                        updateStats(nodeInfo, metricName.replace("value", labels), ((Number) table.getValue()).doubleValue());
+                    }
                 }
-                break;
+            };
+        }
 
-            default:
-                logger.debug("Cannot parse {} as it as an unknown type {} with value {}", mBeanInfo.mBeanName, mBeanInfo.attribute.getType(), value);
-                break;
+        return null;
+    }
+
+    /**
+     * @return the number held by a string, or null if it is not one
+     */
+    private static Double parseDouble(String value) {
+        try {
+            return Double.valueOf(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private ValueDecoder numberDecoder(String metricName) {
+        final Aggregator.Contribution contribution = aggregator.contributionFor(metricName);
+        final CardinalityGuard.Member member = guard.memberFor(metricName, new String[]{metricName});
+        final CardinalityGuard.Activity activity = guard.activityFor(metricName);
+        if (contribution == null && member == null && activity == null) {
+            return (value, nodeInfo, now) -> updateStats(nodeInfo, metricName, ((Number) value).doubleValue());
+        }
+
+        return (value, nodeInfo, now) -> {
+            double number = ((Number) value).doubleValue();
+            if (activity != null) activity.set(number);
+            if (contribution != null) contribution.set(number);
+            if (member != null && member.fold(number)) return;
+            if (contribution == null || !contribution.dropSource) updateStats(nodeInfo, metricName, number);
+        };
+    }
+
+    /**
+     * Return the metric names an EstimatedHistogram is exported as, in the order of metricPercentilesAsArray.
+     * They replace the attribute part of the metric name, i.e :value for gauges and :values for timer buckets
+     */
+    private static String[] histogramMetricNames(String metricName) {
+        String mBeanPath = metricName.substring(0, metricName.lastIndexOf(':') + 1);
+        String[] metricNames = new String[offsetPercentiles.length + 2];
+        for (int i = 0; i < offsetPercentiles.length; i++) {
+            metricNames[i] = mBeanPath + (int) (offsetPercentiles[i] * 100) + "thpercentile";
         }
-        logger.trace("Scrapping took {}ms for {}", (System.currentTimeMillis() - start), mBeanInfo.metricName);
+        metricNames[offsetPercentiles.length] = mBeanPath + "min";
+        metricNames[offsetPercentiles.length + 1] = mBeanPath + "max";
+        return metricNames;
     }
 
     public static <T> T[] concat(T[] a, T[] b) {
@@ -395,18 +1069,173 @@ public class JmxScraper {
         return finalArray;
     }
 
+    /**
+     * Convert the value of an attribute to metrics, resolved once per attribute at discovery time
+     */
+    @FunctionalInterface
+    private interface ValueDecoder {
+        void decode(Object value, NodeInfo nodeInfo, long now);
+    }
+
+    private final class CompositeDataDecoder implements ValueDecoder {
+        private final String metricName;
+        // The type of a CompositeData attribute never changes, so the item metric names are only built once
+        private final Map<String, String> itemMetricNames = new HashMap<>();
+
+        CompositeDataDecoder(String metricName) {
+            this.metricName = metricName;
+        }
+
+        @Override
+        public void decode(Object value, NodeInfo nodeInfo, long now) {
+            CompositeData data = (CompositeData) value;
+            for (String itemName : data.getCompositeType().keySet()) {
+                Object item = data.get(itemName);
+                if (item instanceof Long || item instanceof Double || item instanceof Integer) {
+                    String itemMetricName = itemMetricNames.computeIfAbsent(itemName, name -> metricName + metricSeparator + name.toLowerCase());
+                    updateStats(nodeInfo, itemMetricName, ((Number) item).doubleValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * EstimatedHistogram are exported as percentiles, min and max, each being filtered and scheduled on its own
+     */
+    private final class HistogramDecoder implements ValueDecoder {
+        private final String[] metricNames;
+        private final int[] frequencies;
+        private final double unitFactor;
+        private final Aggregator.Contribution contribution;
+        private final CardinalityGuard.Member member;
+
+        /**
+         * @param unitFactor factor converting the bucket offsets to the unit of the percentiles
+         */
+        HistogramDecoder(String metricName, double unitFactor) {
+            this.metricNames = histogramMetricNames(metricName);
+            this.frequencies = new int[metricNames.length];
+            for (int i = 0; i < metricNames.length; i++) {
+                frequencies[i] = scrapFrequency(metricNames[i]);
+            }
+            this.unitFactor = unitFactor;
+            this.contribution = aggregator.contributionFor(metricName);
+            this.member = guard.memberFor(metricName, Arrays.stream(metricNames).filter(name -> scrapFrequency(name) != NEVER).toArray(String[]::new));
+            if (contribution != null) contribution.rollup.unitFactor = unitFactor;
+            if (member != null) member.unitFactor(unitFactor);
+        }
+
+        @Override
+        public void decode(Object value, NodeInfo nodeInfo, long now) {
+            if (contribution != null) contribution.set((long[]) value);
+            if (member != null && member.fold((long[]) value)) return;
+            if (contribution != null && contribution.dropSource) return;
+
+            double[] percentiles = null;
+            for (int i = 0; i < metricNames.length; i++) {
+                if (isDue(frequencies[i], now)) {
+                    if (percentiles == null) percentiles = metricPercentilesAsArray((long[]) value, unitFactor);
+                    updateStats(nodeInfo, metricNames[i], percentiles[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Count of a Meter, also exported as a per second rate computed from its growth between two scraps
+     */
+    private final class RateDecoder implements ValueDecoder {
+        private final ValueDecoder count;
+        private final String rateName;
+        private final int rateFrequency;
+        private double lastCount = Double.NaN;
+        private long lastScrape;
+
+        RateDecoder(String metricName) {
+            this.count = numberDecoder(metricName);
+            this.rateName = metricName.substring(0, metricName.lastIndexOf(':') + 1) + "rate";
+            this.rateFrequency = scrapFrequency(rateName);
+        }
+
+        @Override
+        public void decode(Object value, NodeInfo nodeInfo, long now) {
+            count.decode(value, nodeInfo, now);
+
+            double number = ((Number) value).doubleValue();
+            // A count going backward means Cassandra restarted, wait for the next scrap to get a meaningful rate
+            if (rateFrequency != NEVER && now > lastScrape && number >= lastCount) {
+                updateStats(nodeInfo, rateName, (number - lastCount) * 1000 / (now - lastScrape));
+            }
+            lastCount = number;
+            lastScrape = now;
+        }
+    }
+
+    /**
+     * Attributes declared as Object can only be resolved from their first value.
+     * The resolved decoder is kept as long as the value keeps the same class.
+     */
+    private final class ObjectDecoder implements ValueDecoder {
+        private final MBeanInfo mBeanInfo;
+        private Class<?> resolvedClass;
+        private ValueDecoder resolved;
+
+        ObjectDecoder(MBeanInfo mBeanInfo) {
+            this.mBeanInfo = mBeanInfo;
+        }
+
+        @Override
+        public void decode(Object value, NodeInfo nodeInfo, long now) {
+            if (value.getClass() != resolvedClass) {
+                resolved = decoderFor(mBeanInfo.metricName, value);
+                resolvedClass = value.getClass();
+            }
+
+            if (resolved == null) {
+                logger.debug("Cannot parse {} as it as an unknown type {} with value {}", mBeanInfo.mBeanName, mBeanInfo.attribute.getType(), value);
+                mBeanInfo.decoder = null;
+                return;
+            }
+            resolved.decode(value, nodeInfo, now);
+        }
+    }
+
+    /**
+     * The scrap rules of the config, compiled. They are replaced as a whole when the config is reloaded
+     */
+    private static final class ScrapRules {
+        final List<Pattern> blacklist;
+        final TreeMap<Integer, List<Pattern>> scrapFrequencies = new TreeMap<>();
+        final boolean countersOnly;
+        final boolean computeRates;
+
+        ScrapRules(List<String> blacklist, SortedMap<Integer, List<String>> scrapFrequencies, boolean countersOnly, boolean computeRates) {
+            if (scrapFrequencies == null || scrapFrequencies.isEmpty()) {
+                throw new IllegalArgumentException("maxScrapFrequencyInSec must define at least one scrap frequency");
+            }
+
+            this.blacklist = blacklist.stream().map(Pattern::compile).collect(toList());
+            scrapFrequencies.forEach((k, v) -> this.scrapFrequencies.put(k * 1000, v.stream().map(Pattern::compile).collect(toList())));
+            this.countersOnly = countersOnly;
+            this.computeRates = computeRates;
+        }
+    }
+
     /**
      * POJO to hold information regarding a metric
      */
-    private static class MBeanInfo {
+    static class MBeanInfo {
         final String metricName;
         final ObjectName mBeanName;
         final MBeanAttributeInfo attribute;
+        final int frequency;
+        ValueDecoder decoder;
 
-        MBeanInfo(String name, ObjectName mBeanName, MBeanAttributeInfo attribute) {
+        MBeanInfo(String name, ObjectName mBeanName, MBeanAttributeInfo attribute, int frequency) {
             this.metricName = name;
             this.attribute = attribute;
             this.mBeanName = mBeanName;
+            this.frequency = frequency;
         }
     }
 
@@ -424,6 +1253,13 @@ public class JmxScraper {
         }
 
         static Optional<NodeInfo> getNodeInfo(MBeanServerConnection beanConn) {
+            final Tracer.Span span = Tracer.INSTANCE.start(Tracer.Kind.NODE_INFO);
+            final Optional<NodeInfo> nodeInfo = fetchNodeInfo(beanConn);
+            span.end(nodeInfo.map(info -> info.clusterName).orElse(""), nodeInfo.map(info -> info.datacenterName).orElse(""), nodeInfo.map(info -> info.tables.size()).orElse(0));
+            return nodeInfo;
+        }
+
+        private static Optional<NodeInfo> fetchNodeInfo(MBeanServerConnection beanConn) {
             String clusterName;
             String datacenterName;
             Set<String> keyspaces = new HashSet<>();
@@ -1,10 +1,12 @@
 package com.criteo.nosql.cassandra.exporter;
 
-import io.prometheus.client.exporter.HTTPServer;
+import io.prometheus.client.CollectorRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -27,18 +29,20 @@ public class Main {
 
         Config cfg = cfgO.get();
         boolean isOneShot = Arrays.asList(args).contains("--oneshot");
-        start(cfg, isOneShot);
+        start(cfg, Paths.get(configPath), isOneShot);
     }
 
-	public static void start(Config cfg, boolean isOneShot) throws IOException, Exception {
-		HTTPServer server = new HTTPServer(cfg.getListenAddress(), cfg.getListenPort());
-        JmxScraper scrapper = new JmxScraper(String.format("service:jmx:rmi:///jndi/rmi://%s/jmxrmi", cfg.getHost()), cfg.getUser(), cfg.getPassword(), cfg.getSSL(), cfg.getBlacklist(), cfg.getMaxScrapFrequencyInSec(), findAdditionalLabelsInEnvironment(System.getenv(), cfg.getAdditionalLabelsFromEnvvars()));
+	public static void start(Config cfg, Path configPath, boolean isOneShot) throws IOException, Exception {
+        JmxScraper scrapper = newScraper(cfg);
+        startServer(cfg, scrapper, false);
 
         if (isOneShot) {
             scrapper.run(false);
             System.exit(0);
         }
 
+        ConfigWatcher.start(configPath, scrapper::reload);
+
         for (; ; ) {
             try {
                 scrapper.run(true);
@@ -54,6 +58,20 @@ public class Main {
         }
 	}
 
+    static JmxScraper newScraper(Config cfg) {
+        JmxScraper scraper = new JmxScraper(String.format("service:jmx:rmi:///jndi/rmi://%s/jmxrmi", cfg.getHost()), cfg, findAdditionalLabelsInEnvironment(System.getenv(), cfg.getAdditionalLabelsFromEnvvars()));
+        cfg.getRemoteWrite().ifPresent(remoteWrite -> scraper.pushTo(new RemoteWriter(remoteWrite, scraper.series()).start()));
+        cfg.getSampleBuffer().ifPresent(sampleBuffer -> scraper.bufferTo(new SampleBuffer(sampleBuffer, scraper.series())));
+        return scraper;
+    }
+
+    /**
+     * Start the http server of the metrics pages, filtered ones included, and of the health and readiness checks
+     */
+    static ExpositionServer startServer(Config cfg, JmxScraper scraper, boolean agent) throws IOException {
+        return ExpositionServer.start(cfg, scraper.series(), scraper.sampleBuffer(), scraper.startup()::isReady, CollectorRegistry.defaultRegistry, agent);
+    }
+
     public static Map<String, String> findAdditionalLabelsInEnvironment(Map<String, String> environment, Optional<Pattern> matchNames) {
         if (matchNames.isPresent()) {
 
@@ -0,0 +1,293 @@
+package com.criteo.nosql.cassandra.exporter;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xerial.snappy.Snappy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Push the series of each scrap tier to a Prometheus remote write endpoint, for nodes that Prometheus cannot reach.
+ * <p>
+ * After each cycle, the series of the tiers that were due and whose value changed are queued as samples, unchanged ones
+ * being resent every resendUnchangedInSec so they don't go stale on the receiver side. Samples are spread over maxInFlight
+ * shards by series, so the samples of a series are always sent in order. Each shard has its own sending thread, sending
+ * one request at a time with retries, and a bounded queue from which the oldest samples are dropped when it overflows.
+ * The pull endpoint is not affected and keeps serving the same series.
+ */
+final class RemoteWriter {
+    private static final Logger logger = LoggerFactory.getLogger(RemoteWriter.class);
+
+    private static final Counter samplesTotal = Counter.build()
+            .name("cassandra_exporter_remote_write_samples_total")
+            .help("Samples queued for the remote write, by result: sent, dropped when the queue overflowed, or failed when the request could not be sent")
+            .labelNames("result")
+            .register();
+    private static final Gauge pendingSamples = Gauge.build()
+            .name("cassandra_exporter_remote_write_pending_samples")
+            .help("Samples waiting to be sent to the remote write endpoint")
+            .register();
+
+    private final URL url;
+    private final Config.RemoteWrite cfg;
+    private final SeriesIndex series;
+    private final Shard[] shards;
+
+    RemoteWriter(Config.RemoteWrite cfg, SeriesIndex series) {
+        if (cfg.getMaxInFlight() <= 0 || cfg.getMaxSamplesPerSend() <= 0 || cfg.getQueueCapacity() < cfg.getMaxInFlight()) {
+            throw new IllegalArgumentException("The remote write needs at least one request in flight, one sample per request and one queued sample per request in flight");
+        }
+        try {
+            this.url = new URL(cfg.getUrl());
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Invalid remote write url " + cfg.getUrl(), e);
+        }
+        this.cfg = cfg;
+        this.series = series;
+        this.shards = new Shard[cfg.getMaxInFlight()];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(cfg.getQueueCapacity() / shards.length);
+        }
+    }
+
+    /**
+     * Start the sending threads, as daemons so they never keep the exporter alive
+     */
+    RemoteWriter start() {
+        for (int i = 0; i < shards.length; i++) {
+            Thread thread = new Thread(shards[i], "remote-write-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        logger.info("Pushing metrics to {} with up to {} requests in flight", url, shards.length);
+        return this;
+    }
+
+    /**
+     * Queue the series of a tier that has just been scraped
+     *
+     * @param frequency   the scrap frequency in ms of the tier
+     * @param timestampMs the time of the scrap, given to the samples
+     */
+    void tierScraped(int frequency, long timestampMs) {
+        for (Collector.MetricFamilySamples.Sample sample : series.changed(frequency, timestampMs, cfg.getResendUnchangedInSec() * 1000L)) {
+            shards[Math.floorMod(sample.labelValues.hashCode(), shards.length)].add(sample);
+        }
+    }
+
+    private final class Shard implements Runnable {
+        private final int capacity;
+        private final ArrayDeque<Collector.MetricFamilySamples.Sample> queue = new ArrayDeque<>();
+
+        Shard(int capacity) {
+            this.capacity = capacity;
+        }
+
+        synchronized void add(Collector.MetricFamilySamples.Sample sample) {
+            if (queue.size() >= capacity) {
+                queue.pollFirst();
+                samplesTotal.labels("dropped").inc();
+                pendingSamples.dec();
+            }
+            queue.addLast(sample);
+            pendingSamples.inc();
+            notifyAll();
+        }
+
+        synchronized List<Collector.MetricFamilySamples.Sample> take(int max) throws InterruptedException {
+            while (queue.isEmpty()) wait();
+
+            List<Collector.MetricFamilySamples.Sample> batch = new ArrayList<>(Math.min(max, queue.size()));
+            while (batch.size() < max && !queue.isEmpty()) batch.add(queue.pollFirst());
+            pendingSamples.dec(batch.size());
+            return batch;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (; ; ) {
+                    send(take(cfg.getMaxSamplesPerSend()));
+                }
+            } catch (InterruptedException e) {
+                logger.info("Stopped pushing metrics to {}", url);
+            }
+        }
+    }
+
+    /**
+     * Send a batch, retrying with an exponential backoff as long as the error is recoverable
+     */
+    private void send(List<Collector.MetricFamilySamples.Sample> batch) throws InterruptedException {
+        byte[] body;
+        try {
+            body = Snappy.compress(encode(batch));
+        } catch (IOException e) {
+            logger.error("Cannot compress {} samples for the remote write", batch.size(), e);
+            samplesTotal.labels("failed").inc(batch.size());
+            return;
+        }
+
+        long backoff = cfg.getMinBackoffInMs();
+        for (int attempt = 0; ; attempt++) {
+            String error;
+            try {
+                int status = post(body);
+                if (status / 100 == 2) {
+                    samplesTotal.labels("sent").inc(batch.size());
+                    return;
+                }
+                // As Prometheus does, only server errors and throttling are worth a retry
+                if (status != 429 && status / 100 != 5) {
+                    logger.error("Remote write of {} samples rejected with HTTP {}, dropping them", batch.size(), status);
+                    samplesTotal.labels("failed").inc(batch.size());
+                    return;
+                }
+                error = "HTTP " + status;
+            } catch (IOException e) {
+                error = e.toString();
+            }
+
+            if (attempt >= cfg.getMaxRetries()) {
+                logger.warn("Remote write of {} samples failed after {} retries with {}, dropping them", batch.size(), attempt, error);
+                samplesTotal.labels("failed").inc(batch.size());
+                return;
+            }
+            logger.debug("Remote write of {} samples failed with {}, retrying in {}ms", batch.size(), error, backoff);
+            Thread.sleep(backoff);
+            backoff = Math.min(backoff * 2, cfg.getMaxBackoffInMs());
+        }
+    }
+
+    private int post(byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setConnectTimeout(cfg.getTimeoutInMs());
+            connection.setReadTimeout(cfg.getTimeoutInMs());
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Encoding", "snappy");
+            connection.setRequestProperty("Content-Type", "application/x-protobuf");
+            connection.setRequestProperty("User-Agent", "cassandra_exporter");
+            connection.setRequestProperty("X-Prometheus-Remote-Write-Version", "0.1.0");
+            connection.setFixedLengthStreamingMode(body.length);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+            }
+
+            int status = connection.getResponseCode();
+            // Read the response fully so the connection can be kept alive
+            try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                if (in != null) while (in.read() != -1) ;
+            }
+            return status;
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * Encode samples as a remote write protobuf WriteRequest, each sample being a TimeSeries of its own with its
+     * labels sorted by name, __name__ included. Labels with an empty value are left out, as Prometheus does.
+     * https://github.com/prometheus/prometheus/blob/main/prompb/remote.proto
+     */
+    static byte[] encode(List<Collector.MetricFamilySamples.Sample> samples) {
+        ProtoBuffer request = new ProtoBuffer(samples.size() * 256);
+        ProtoBuffer timeSeries = new ProtoBuffer(256);
+        ProtoBuffer field = new ProtoBuffer(128);
+
+        List<String> labelNames = null;
+        Integer[] order = null;
+        for (Collector.MetricFamilySamples.Sample sample : samples) {
+            // All the samples of an index share the same label names, so sort them only once
+            if (sample.labelNames != labelNames) {
+                labelNames = sample.labelNames;
+                order = sortedLabels(labelNames);
+            }
+
+            timeSeries.reset();
+            for (Integer i : order) {
+                if (i >= 0 && sample.labelValues.get(i).isEmpty()) continue;
+                field.reset();
+                field.writeString(1, i < 0 ? "__name__" : labelNames.get(i));
+                field.writeString(2, i < 0 ? sample.name : sample.labelValues.get(i));
+                timeSeries.writeMessage(1, field);
+            }
+
+            field.reset();
+            field.writeDouble(1, sample.value);
+            field.writeInt64(2, sample.timestampMs == null ? System.currentTimeMillis() : sample.timestampMs);
+            timeSeries.writeMessage(2, field);
+
+            request.writeMessage(1, timeSeries);
+        }
+        return request.toByteArray();
+    }
+
+    /**
+     * @return the indexes of the label names in name order, -1 standing for __name__
+     */
+    private static Integer[] sortedLabels(List<String> labelNames) {
+        Integer[] order = new Integer[labelNames.size() + 1];
+        for (int i = 0; i < order.length; i++) order[i] = i - 1;
+        Arrays.sort(order, Comparator.comparing(i -> i < 0 ? "__name__" : labelNames.get(i)));
+        return order;
+    }
+
+    /**
+     * The few protobuf wire types a WriteRequest needs
+     */
+    private static final class ProtoBuffer extends ByteArrayOutputStream {
+        ProtoBuffer(int size) {
+            super(size);
+        }
+
+        void writeString(int fieldNumber, String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeTag(fieldNumber, 2);
+            writeVarint(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        void writeMessage(int fieldNumber, ProtoBuffer message) {
+            writeTag(fieldNumber, 2);
+            writeVarint(message.count);
+            write(message.buf, 0, message.count);
+        }
+
+        void writeDouble(int fieldNumber, double value) {
+            writeTag(fieldNumber, 1);
+            long bits = Double.doubleToRawLongBits(value);
+            for (int b = 0; b < 8; b++) write((int) (bits >>> (8 * b)));
+        }
+
+        void writeInt64(int fieldNumber, long value) {
+            writeTag(fieldNumber, 0);
+            writeVarint(value);
+        }
+
+        private void writeTag(int fieldNumber, int wireType) {
+            writeVarint((fieldNumber << 3) | wireType);
+        }
+
+        private void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+    }
+}
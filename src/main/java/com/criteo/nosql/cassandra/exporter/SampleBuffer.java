@@ -0,0 +1,443 @@
+package com.criteo.nosql.cassandra.exporter;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Recent samples of every series, kept in memory to backfill Prometheus after an outage, as the series index only
+ * keeps their last value.
+ * <p>
+ * Samples are compressed as Gorilla does. Timestamps are stored as the delta of their delta, a single bit when a series
+ * is scraped at a steady pace. Values are XORed with the previous one, a single bit when unchanged and only the
+ * meaningful bits otherwise. The bits of a series are kept in long arrays, in chunks of SAMPLES_PER_CHUNK samples.
+ * Full chunks are dropped once all their samples are older than the retention, or oldest first when the buffer goes
+ * over its memory cap. The chunks of a series are in time order, but the series of the slower tiers fill theirs later
+ * than the others, so the oldest chunks are looked for in every series.
+ * Written by the scraper thread, read concurrently by the http threads.
+ */
+final class SampleBuffer {
+    private static final Logger logger = LoggerFactory.getLogger(SampleBuffer.class);
+
+    static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+    private static final int KEYSPACE = 2;
+    private static final int NAME = 4;
+    private static final int SAMPLES_PER_CHUNK = 60;
+    // Size of a ring and of a chunk besides their bits, headers, fields and map entry included, with compressed oops
+    private static final int RING_BYTES = 96;
+    private static final int CHUNK_BYTES = 48;
+
+    private static final Gauge bufferBytes = Gauge.build()
+            .name("cassandra_exporter_sample_buffer_bytes")
+            .help("Memory used by the buffered samples")
+            .register();
+    private static final Gauge bufferSeries = Gauge.build()
+            .name("cassandra_exporter_sample_buffer_series")
+            .help("Series with buffered samples")
+            .register();
+    private static final Counter evictedChunks = Counter.build()
+            .name("cassandra_exporter_sample_buffer_evicted_chunks_total")
+            .help("Chunks of samples dropped from the buffer, by reason: retention when they expired, memory when the buffer was over its cap")
+            .labelNames("reason")
+            .register();
+
+    private final SeriesIndex series;
+    private final long retentionMs;
+    private final long maxBytes;
+    private final ConcurrentMap<List<String>, Ring> rings = new ConcurrentHashMap<>();
+    private volatile long bytes;
+    private boolean warnedOverCap;
+
+    SampleBuffer(Config.SampleBuffer cfg, SeriesIndex series) {
+        this(series, cfg.getRetentionInSec() * 1000L, cfg.getMaxMemoryInMb() * 1024L * 1024L);
+    }
+
+    SampleBuffer(SeriesIndex series, long retentionMs, long maxBytes) {
+        if (retentionMs <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("The sample buffer needs a positive retention and memory cap");
+        }
+        this.series = series;
+        this.retentionMs = retentionMs;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Buffer the current value of the series of a tier that has just been scraped
+     *
+     * @param frequency   the scrap frequency in ms of the tier
+     * @param timestampMs the time of the scrap, given to the samples
+     */
+    void tierScraped(int frequency, long timestampMs) {
+        series.forEach(frequency, (labels, structured, value) -> add(labels, structured, value, timestampMs));
+        evict(timestampMs);
+        bufferBytes.set(bytes);
+        bufferSeries.set(rings.size());
+    }
+
+    private void add(List<String> labels, StructuredName structured, double value, long timestampMs) {
+        Ring ring = rings.get(labels);
+        if (ring == null) {
+            if (bytes + RING_BYTES > maxBytes) {
+                if (!warnedOverCap) logger.warn("The sample buffer is over its cap of {} bytes with the latest samples only, new series are not buffered", maxBytes);
+                warnedOverCap = true;
+                return;
+            }
+            ring = new Ring(labels);
+            rings.put(labels, ring);
+            bytes += RING_BYTES;
+        }
+        synchronized (ring) {
+            if (ring.structured == null) ring.structured = structured;
+            ring.add(timestampMs, Double.doubleToRawLongBits(value));
+        }
+    }
+
+    private void evict(long now) {
+        final long oldest = now - retentionMs;
+        for (Iterator<Ring> it = rings.values().iterator(); it.hasNext(); ) {
+            Ring ring = it.next();
+            synchronized (ring) {
+                while (ring.first != ring.head && ring.first.lastTimestamp < oldest) {
+                    dropFirst(ring, "retention");
+                }
+            }
+
+            // The last chunk of a series not scraped anymore never gets full, it goes with the series once expired
+            if (ring.lastTimestamp >= oldest) continue;
+            it.remove();
+            bytes -= RING_BYTES + ring.head.bytes();
+        }
+
+        if (bytes <= maxBytes) return;
+        final PriorityQueue<Ring> byOldestChunk = new PriorityQueue<>(Comparator.comparingLong((Ring ring) -> ring.first.lastTimestamp));
+        for (Ring ring : rings.values()) {
+            if (ring.first != ring.head) byOldestChunk.add(ring);
+        }
+        while (bytes > maxBytes && !byOldestChunk.isEmpty()) {
+            Ring ring = byOldestChunk.poll();
+            synchronized (ring) {
+                dropFirst(ring, "memory");
+            }
+            if (ring.first != ring.head) byOldestChunk.add(ring);
+        }
+    }
+
+    /**
+     * Drop the oldest chunk of a series, that is full. The ring must be locked
+     */
+    private void dropFirst(Ring ring, String reason) {
+        Chunk chunk = ring.first;
+        ring.first = chunk.next;
+        bytes -= chunk.bytes();
+        evictedChunks.labels(reason).inc();
+    }
+
+    /**
+     * Memory used by the buffered samples, as estimated from the size of their arrays and objects
+     */
+    long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Write the buffered samples of the series matching the filters in the OpenMetrics format, with their timestamp.
+     * The samples of a series are written together, oldest first, as backfilling tools expect them
+     *
+     * @return the number of samples written
+     */
+    long write(OutputStream out, Optional<String> prefix, Optional<String> keyspace) throws IOException {
+        Map<String, List<Ring>> families = new TreeMap<>();
+        for (Ring ring : rings.values()) {
+            if (prefix.isPresent() && !ring.labels.get(NAME).startsWith(prefix.get())) continue;
+            if (keyspace.isPresent() && !ring.labels.get(KEYSPACE).equals(keyspace.get())) continue;
+            families.computeIfAbsent(ring.family(), family -> new ArrayList<>()).add(ring);
+        }
+
+        long written = 0;
+        StringBuilder lines = new StringBuilder();
+        for (Map.Entry<String, List<Ring>> family : families.entrySet()) {
+            lines.append("# TYPE ").append(family.getKey()).append(" gauge\n# HELP ").append(family.getKey()).append(' ');
+            SeriesIndex.escape(lines, family.getValue().get(0).help(), true);
+            lines.append('\n');
+            for (Ring ring : family.getValue()) {
+                String seriesPrefix = ring.prefix();
+                for (long[] chunk : ring.snapshot()) {
+                    written += decode(chunk, (timestampMs, value) -> {
+                        lines.append(seriesPrefix).append(Collector.doubleToGoString(value)).append(' ').append(timestampMs / 1000).append('.');
+                        long millis = timestampMs % 1000;
+                        if (millis < 100) lines.append('0');
+                        if (millis < 10) lines.append('0');
+                        lines.append(millis).append('\n');
+                    });
+                }
+                out.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+                lines.setLength(0);
+            }
+        }
+        out.write("# EOF\n".getBytes(StandardCharsets.UTF_8));
+        return written;
+    }
+
+    interface SampleConsumer {
+        void accept(long timestampMs, double value);
+    }
+
+    /**
+     * Decode the samples of a chunk, whose first element is the number of samples followed by their bits
+     *
+     * @return the number of samples decoded
+     */
+    static int decode(long[] chunk, SampleConsumer consumer) {
+        final int count = (int) chunk[0];
+        if (count == 0) return 0;
+
+        final BitReader in = new BitReader(chunk);
+        long timestamp = in.read(64);
+        long valueBits = in.read(64);
+        consumer.accept(timestamp, Double.longBitsToDouble(valueBits));
+
+        long delta = 0;
+        int leading = 0, trailing = 0;
+        for (int i = 1; i < count; i++) {
+            long deltaOfDelta;
+            if (!in.bit()) deltaOfDelta = 0;
+            else if (!in.bit()) deltaOfDelta = signed(in.read(14), 14);
+            else if (!in.bit()) deltaOfDelta = signed(in.read(17), 17);
+            else if (!in.bit()) deltaOfDelta = signed(in.read(20), 20);
+            else deltaOfDelta = in.read(64);
+            delta += deltaOfDelta;
+            timestamp += delta;
+
+            if (in.bit()) {
+                if (in.bit()) {
+                    leading = (int) in.read(5);
+                    int significant = (int) in.read(6);
+                    trailing = 64 - leading - (significant == 0 ? 64 : significant);
+                }
+                valueBits ^= in.read(64 - leading - trailing) << trailing;
+            }
+            consumer.accept(timestamp, Double.longBitsToDouble(valueBits));
+        }
+        return count;
+    }
+
+    private static long signed(long value, int bits) {
+        return value > (1L << (bits - 1)) ? value - (1L << bits) : value;
+    }
+
+    private static boolean fits(long value, int bits) {
+        return value > -(1L << (bits - 1)) && value <= (1L << (bits - 1));
+    }
+
+    /**
+     * Samples of a series: a linked list of chunks from the oldest one to the one being written, and the state of the
+     * encoder for the next sample
+     */
+    private final class Ring {
+        final List<String> labels;
+        volatile StructuredName structured;
+        Chunk first;
+        Chunk head;
+        long lastTimestamp;
+        long lastDelta;
+        long lastValueBits;
+        int leading;
+        int trailing;
+
+        Ring(List<String> labels) {
+            this.labels = labels;
+        }
+
+        void add(long timestamp, long valueBits) {
+            // OpenMetrics needs the samples of a series in order
+            if (head != null && timestamp <= lastTimestamp) return;
+
+            if (head == null || head.count == SAMPLES_PER_CHUNK) {
+                Chunk chunk = new Chunk();
+                if (head == null) {
+                    first = chunk;
+                } else {
+                    bytes += head.trim();
+                    head.next = chunk;
+                }
+                head = chunk;
+                bytes += chunk.bytes();
+            }
+
+            final Chunk chunk = head;
+            final long before = chunk.bytes();
+            if (chunk.count == 0) {
+                chunk.write(timestamp, 64);
+                chunk.write(valueBits, 64);
+                lastDelta = 0;
+                leading = -1;
+            } else {
+                long delta = timestamp - lastTimestamp;
+                long deltaOfDelta = delta - lastDelta;
+                if (deltaOfDelta == 0) {
+                    chunk.write(0, 1);
+                } else if (fits(deltaOfDelta, 14)) {
+                    chunk.write(0b10, 2);
+                    chunk.write(deltaOfDelta, 14);
+                } else if (fits(deltaOfDelta, 17)) {
+                    chunk.write(0b110, 3);
+                    chunk.write(deltaOfDelta, 17);
+                } else if (fits(deltaOfDelta, 20)) {
+                    chunk.write(0b1110, 4);
+                    chunk.write(deltaOfDelta, 20);
+                } else {
+                    chunk.write(0b1111, 4);
+                    chunk.write(deltaOfDelta, 64);
+                }
+                lastDelta = delta;
+
+                long xor = valueBits ^ lastValueBits;
+                if (xor == 0) {
+                    chunk.write(0, 1);
+                } else {
+                    int leadingZeros = Math.min(Long.numberOfLeadingZeros(xor), 31);
+                    int trailingZeros = Long.numberOfTrailingZeros(xor);
+                    if (leading >= 0 && leadingZeros >= leading && trailingZeros >= trailing) {
+                        // The meaningful bits fit in the window of the previous value
+                        chunk.write(0b10, 2);
+                        chunk.write(xor >>> trailing, 64 - leading - trailing);
+                    } else {
+                        int significant = 64 - leadingZeros - trailingZeros;
+                        chunk.write(0b11, 2);
+                        chunk.write(leadingZeros, 5);
+                        chunk.write(significant, 6);
+                        chunk.write(xor >>> trailingZeros, significant);
+                        leading = leadingZeros;
+                        trailing = trailingZeros;
+                    }
+                }
+            }
+            chunk.count++;
+            chunk.lastTimestamp = timestamp;
+            bytes += chunk.bytes() - before;
+            lastTimestamp = timestamp;
+            lastValueBits = valueBits;
+        }
+
+        /**
+         * @return the chunks of the series, each one being its number of samples followed by its bits
+         */
+        synchronized List<long[]> snapshot() {
+            List<long[]> chunks = new ArrayList<>();
+            for (Chunk chunk = first; chunk != null; chunk = chunk.next) {
+                long[] copy = new long[chunk.words.length + 1];
+                copy[0] = chunk.count;
+                System.arraycopy(chunk.words, 0, copy, 1, chunk.words.length);
+                chunks.add(copy);
+            }
+            return chunks;
+        }
+
+        String family() {
+            return structured == null ? series.name() : structured.family;
+        }
+
+        String help() {
+            return structured == null ? series.help() : structured.help;
+        }
+
+        /**
+         * @return the name and the labels of the series, as written before each sample
+         */
+        String prefix() {
+            List<String> names = structured == null ? series.labelNames() : structured.labelNames;
+            List<String> values = structured == null ? labels : structured.labelValues;
+            StringBuilder prefix = new StringBuilder(family()).append('{');
+            for (int i = 0; i < names.size(); i++) {
+                if (i > 0) prefix.append(',');
+                prefix.append(names.get(i)).append("=\"");
+                SeriesIndex.escape(prefix, values.get(i), true);
+                prefix.append('"');
+            }
+            return prefix.append("} ").toString();
+        }
+    }
+
+    /**
+     * Bits of up to SAMPLES_PER_CHUNK samples of a series, written from the most significant bit of each word
+     */
+    private static final class Chunk {
+        long[] words = new long[2];
+        int bits;
+        int count;
+        long lastTimestamp;
+        Chunk next;
+
+        /**
+         * Write the given number of low bits of a value, most significant first
+         */
+        void write(long value, int length) {
+            if (bits + length > words.length * 64) {
+                words = Arrays.copyOf(words, words.length * 2);
+            }
+            final int index = bits >>> 6;
+            final int free = 64 - (bits & 63);
+            final long masked = length == 64 ? value : value & ((1L << length) - 1);
+            if (length <= free) {
+                words[index] |= masked << (free - length);
+            } else {
+                words[index] |= masked >>> (length - free);
+                words[index + 1] |= masked << (64 - (length - free));
+            }
+            bits += length;
+        }
+
+        /**
+         * Drop the unused words, once the chunk is full
+         *
+         * @return the change of its size in bytes
+         */
+        long trim() {
+            long before = bytes();
+            words = Arrays.copyOf(words, (bits + 63) >>> 6);
+            return bytes() - before;
+        }
+
+        long bytes() {
+            return CHUNK_BYTES + 8L * words.length;
+        }
+    }
+
+    /**
+     * Read the bits of a chunk, that start after its number of samples
+     */
+    private static final class BitReader {
+        private final long[] words;
+        private int position = 64;
+
+        BitReader(long[] words) {
+            this.words = words;
+        }
+
+        boolean bit() {
+            return read(1) != 0;
+        }
+
+        long read(int length) {
+            final int index = position >>> 6;
+            final int available = 64 - (position & 63);
+            long value;
+            if (length <= available) {
+                value = words[index] >>> (available - length);
+            } else {
+                value = (words[index] << (length - available)) | (words[index + 1] >>> (64 - (length - available)));
+            }
+            position += length;
+            return length == 64 ? value : value & ((1L << length) - 1);
+        }
+    }
+}
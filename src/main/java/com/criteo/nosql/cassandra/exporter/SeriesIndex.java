@@ -0,0 +1,403 @@
+package com.criteo.nosql.cassandra.exporter;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Gauge;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * Index of the series of a gauge by scrap tier, keyspace and metric name.
+ * <p>
+ * Series are indexed once, when they are created, so serving a filtered page only costs what it returns instead of
+ * collecting and filtering the whole gauge. The index also keeps the gauge children, so setting a value is a single lookup.
+ * Written by the scraper thread, read concurrently by the http threads.
+ * <p>
+ * In the structured labels mode, series are exposed under the family and labels of their MBean instead of the gauge
+ * name and the name label. They are resolved once per series too, as the index keys stay the gauge labels.
+ * <p>
+ * Most series keep the same value from a cycle to the next, so a series is only updated when its value changes, and
+ * stamped with the generation of the cycle that changed it. Each series keeps its line of the text format, that is only
+ * encoded again once its value changed, and a delta page only holds the series changed since a given generation.
+ */
+final class SeriesIndex {
+    private static final int KEYSPACE = 2;
+    private static final int NAME = 4;
+
+    private final Gauge gauge;
+    private final String name;
+    private final String help;
+    private final List<String> labelNames;
+    private final ToIntFunction<String> tierOf;
+    private final Optional<Function<List<String>, StructuredName>> structureOf;
+    private final ConcurrentMap<List<String>, Series> series = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<String, Set<Series>> byName = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, Set<Series>> byKeyspace = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, Set<Series>> byTier = new ConcurrentHashMap<>();
+    // Generations are numbered from the time the index was created in ms. There are far fewer generations than ms,
+    // so the ones of a previous process, that a client may still ask for after a restart, are all below the first one
+    private final long firstGeneration = System.currentTimeMillis();
+    // Last published generation, the changes being stamped with the next one until it is published in turn
+    private volatile long generation = firstGeneration;
+    // Generation in which series were last removed, a delta page cannot tell it so a full page is served instead
+    private volatile long removedAt;
+
+    /**
+     * @param tierOf the scrap frequency in ms of a metric name, the tier its series are listed under
+     */
+    SeriesIndex(Gauge gauge, List<String> labelNames, ToIntFunction<String> tierOf) {
+        this(gauge, labelNames, tierOf, Optional.empty());
+    }
+
+    /**
+     * @param tierOf      the scrap frequency in ms of a metric name, the tier its series are listed under
+     * @param structureOf the structured name of the series of the given labels, or null if it cannot be resolved yet
+     */
+    SeriesIndex(Gauge gauge, List<String> labelNames, ToIntFunction<String> tierOf, Optional<Function<List<String>, StructuredName>> structureOf) {
+        this.gauge = gauge;
+        this.name = gauge.describe().get(0).name;
+        this.help = gauge.describe().get(0).help;
+        this.labelNames = labelNames;
+        this.tierOf = tierOf;
+        this.structureOf = structureOf;
+    }
+
+    void set(String[] labels, double value) {
+        Series s = series.computeIfAbsent(Arrays.asList(labels), this::index);
+        if (Double.doubleToLongBits(s.child.get()) == Double.doubleToLongBits(value)) return;
+
+        s.child.set(value);
+        s.changedAt = generation + 1;
+    }
+
+    void remove(String[] labels) {
+        Series removed = series.remove(Arrays.asList(labels));
+        if (removed == null) return;
+
+        removedAt = generation + 1;
+        gauge.remove(labels);
+        unindex(byName, labels[NAME], removed);
+        unindex(byKeyspace, labels[KEYSPACE], removed);
+        unindex(byTier, removed.tier, removed);
+    }
+
+    /**
+     * Recompute the tier of every series, after the scrap frequencies changed
+     *
+     * @return the labels of the series whose tier is now negative, as they are not scraped anymore
+     */
+    List<String[]> retier() {
+        List<String[]> unscraped = new ArrayList<>();
+        for (Series s : series.values()) {
+            int tier = tierOf.applyAsInt(s.labels.get(NAME));
+            if (tier < 0) unscraped.add(s.labels.toArray(new String[0]));
+            if (tier == s.tier) continue;
+
+            unindex(byTier, s.tier, s);
+            s.tier = tier;
+            byTier.computeIfAbsent(tier, key -> ConcurrentHashMap.newKeySet()).add(s);
+        }
+        return unscraped;
+    }
+
+    /**
+     * Collect the series of a tier whose value changed since they were last collected, or that were not collected for
+     * refreshMs, stamped with the given timestamp. Only meant to be called by the scraper thread
+     */
+    List<Collector.MetricFamilySamples.Sample> changed(int tier, long timestampMs, long refreshMs) {
+        List<Collector.MetricFamilySamples.Sample> samples = new ArrayList<>();
+        for (Series s : byTier.getOrDefault(tier, Collections.emptySet())) {
+            double value = s.child.get();
+            if (Double.doubleToLongBits(value) == Double.doubleToLongBits(s.collectedValue) && timestampMs - s.collectedAt < refreshMs) continue;
+
+            s.collectedValue = value;
+            s.collectedAt = timestampMs;
+            samples.add(sample(s, value, timestampMs));
+        }
+        return samples;
+    }
+
+    /**
+     * Call the consumer with every series of a tier and its current value. Only meant to be called by the scraper thread
+     */
+    void forEach(int tier, SeriesConsumer consumer) {
+        for (Series s : byTier.getOrDefault(tier, Collections.emptySet())) {
+            consumer.accept(s.labels, structuredName(s), s.child.get());
+        }
+    }
+
+    interface SeriesConsumer {
+        /**
+         * @param structured the structured name of the series, or null when not in the structured labels mode
+         */
+        void accept(List<String> labels, StructuredName structured, double value);
+    }
+
+    /**
+     * Publish the changes of a scrap cycle, that are stamped with a new generation from now on.
+     * Only meant to be called by the scraper thread, once all the series of the cycle are set
+     */
+    void publish() {
+        generation++;
+    }
+
+    /**
+     * @return the generation of the last published changes, from which the changes of the next ones can be asked
+     */
+    long generation() {
+        return generation;
+    }
+
+    /**
+     * @return False if a delta page since the given generation would miss some changes, as series were removed since
+     * then or as it is not a generation of this index, i.e one of the exporter before it restarted
+     */
+    boolean hasDeltaSince(long since) {
+        return since >= firstGeneration && since <= generation && removedAt <= since;
+    }
+
+    int size() {
+        return series.size();
+    }
+
+    String name() {
+        return name;
+    }
+
+    String help() {
+        return help;
+    }
+
+    List<String> labelNames() {
+        return labelNames;
+    }
+
+    void clear() {
+        removedAt = generation + 1;
+        gauge.clear();
+        series.clear();
+        byName.clear();
+        byKeyspace.clear();
+        byTier.clear();
+    }
+
+    /**
+     * Return the series matching all the given filters, each one being optional
+     *
+     * @param tier     scrap frequency in ms of the series
+     * @param prefix   prefix of the metric name of the series
+     * @param keyspace keyspace label of the series
+     */
+    List<Collector.MetricFamilySamples> select(Optional<Integer> tier, Optional<String> prefix, Optional<String> keyspace) {
+        Map<String, Collector.MetricFamilySamples> families = new TreeMap<>();
+        for (Map.Entry<String, List<Series>> family : families(tier, prefix, keyspace, 0, name -> true).entrySet()) {
+            StructuredName structured = structuredName(family.getValue().get(0));
+            List<Collector.MetricFamilySamples.Sample> samples = new ArrayList<>(family.getValue().size());
+            for (Series s : family.getValue()) samples.add(sample(s, s.child.get(), null));
+            families.put(family.getKey(), new Collector.MetricFamilySamples(family.getKey(), Collector.Type.GAUGE, structured == null ? help : structured.help, samples));
+        }
+        if (families.isEmpty()) {
+            return Collections.singletonList(new Collector.MetricFamilySamples(name, Collector.Type.GAUGE, help, Collections.emptyList()));
+        }
+        return new ArrayList<>(families.values());
+    }
+
+    /**
+     * Write the series matching all the given filters in the text format 0.0.4, as select would return them. The line
+     * of a series is only encoded again when its value changed since it was last written.
+     *
+     * @param since    only write the series changed after this generation, 0 for all of them
+     * @param families the metric families to write
+     * @return the number of series written
+     */
+    long write(OutputStream out, Optional<Integer> tier, Optional<String> prefix, Optional<String> keyspace, long since, Predicate<String> families) throws IOException {
+        long written = 0;
+        Map<String, List<Series>> selected = families(tier, prefix, keyspace, since, families);
+        if (selected.isEmpty() && since <= 0 && families.test(name)) {
+            writeHeader(out, name, help);
+        }
+        for (Map.Entry<String, List<Series>> family : selected.entrySet()) {
+            StructuredName structured = structuredName(family.getValue().get(0));
+            writeHeader(out, family.getKey(), structured == null ? help : structured.help);
+            for (Series s : family.getValue()) {
+                out.write(line(s).bytes);
+                written++;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * @return the series matching all the given filters by family name, so the page is stable
+     */
+    private Map<String, List<Series>> families(Optional<Integer> tier, Optional<String> prefix, Optional<String> keyspace, long since, Predicate<String> families) {
+        // Walk the smallest index matching a filter, and check the other filters on each of its series
+        Collection<Series> candidates = null;
+        if (tier.isPresent()) {
+            candidates = byTier.getOrDefault(tier.get(), Collections.emptySet());
+        }
+        if (keyspace.isPresent()) {
+            Set<Series> inKeyspace = byKeyspace.getOrDefault(keyspace.get(), Collections.emptySet());
+            if (candidates == null || inKeyspace.size() < candidates.size()) candidates = inKeyspace;
+        }
+        if (candidates == null) {
+            candidates = new ArrayList<>();
+            for (Set<Series> named : byName.subMap(prefix.orElse(""), true, prefix.orElse("") + Character.MAX_VALUE, true).values()) {
+                candidates.addAll(named);
+            }
+        }
+
+        Map<String, List<Series>> selected = new TreeMap<>();
+        for (Series s : candidates) {
+            if (tier.isPresent() && s.tier != tier.get()) continue;
+            if (keyspace.isPresent() && !keyspace.get().equals(s.labels.get(KEYSPACE))) continue;
+            if (prefix.isPresent() && !s.labels.get(NAME).startsWith(prefix.get())) continue;
+            if (s.changedAt <= since) continue;
+
+            StructuredName structured = structuredName(s);
+            String family = structured == null ? name : structured.family;
+            if (!families.test(family)) continue;
+            selected.computeIfAbsent(family, key -> new ArrayList<>()).add(s);
+        }
+        return selected;
+    }
+
+    private Collector.MetricFamilySamples.Sample sample(Series s, double value, Long timestampMs) {
+        StructuredName structured = structuredName(s);
+        return structured == null
+                ? new Collector.MetricFamilySamples.Sample(name, labelNames, s.labels, value, timestampMs)
+                : new Collector.MetricFamilySamples.Sample(structured.family, structured.labelNames, structured.labelValues, value, timestampMs);
+    }
+
+    /**
+     * @return the line of a series for its current value, encoded again only if its value changed since the last time
+     */
+    private Line line(Series s) {
+        double value = s.child.get();
+        long valueBits = Double.doubleToLongBits(value);
+        StructuredName structured = structuredName(s);
+        Line line = s.line;
+        if (line != null && line.valueBits == valueBits && line.structured == structured) return line;
+
+        byte[] encodedValue = (Collector.doubleToGoString(value) + "\n").getBytes(StandardCharsets.UTF_8);
+        byte[] bytes;
+        int prefixLength;
+        if (line == null || line.structured != structured) {
+            // The name and labels of a series only change once, when its structured name is resolved, so they are
+            // only escaped again then
+            Collector.MetricFamilySamples.Sample sample = sample(s, value, null);
+            StringBuilder prefix = new StringBuilder(sample.name);
+            if (!sample.labelNames.isEmpty()) {
+                prefix.append('{');
+                for (int i = 0; i < sample.labelNames.size(); i++) {
+                    prefix.append(sample.labelNames.get(i)).append("=\"");
+                    escape(prefix, sample.labelValues.get(i), true);
+                    prefix.append("\",");
+                }
+                prefix.append('}');
+            }
+            prefix.append(' ');
+            byte[] prefixBytes = prefix.toString().getBytes(StandardCharsets.UTF_8);
+            prefixLength = prefixBytes.length;
+            bytes = Arrays.copyOf(prefixBytes, prefixLength + encodedValue.length);
+        } else {
+            prefixLength = line.prefixLength;
+            bytes = Arrays.copyOf(line.bytes, prefixLength + encodedValue.length);
+        }
+        System.arraycopy(encodedValue, 0, bytes, prefixLength, encodedValue.length);
+
+        // Concurrent writers may store an older line, it is then encoded again as its value doesn't match anymore
+        line = new Line(bytes, prefixLength, valueBits, structured);
+        s.line = line;
+        return line;
+    }
+
+    private static void writeHeader(OutputStream out, String family, String help) throws IOException {
+        StringBuilder header = new StringBuilder("# HELP ").append(family).append(' ');
+        escape(header, help, false);
+        header.append("\n# TYPE ").append(family).append(" gauge\n");
+        out.write(header.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Escape a help or label value as the text format 0.0.4 does
+     */
+    static void escape(StringBuilder out, String value, boolean labelValue) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\') out.append("\\\\");
+            else if (c == '\n') out.append("\\n");
+            else if (c == '"' && labelValue) out.append("\\\"");
+            else out.append(c);
+        }
+    }
+
+    /**
+     * Series whose MBean was not discovered yet, i.e restored from a snapshot, keep the gauge name until it is
+     */
+    private StructuredName structuredName(Series s) {
+        if (s.structured == null && structureOf.isPresent()) {
+            s.structured = structureOf.get().apply(s.labels);
+        }
+        return s.structured;
+    }
+
+    private Series index(List<String> labels) {
+        Series s = new Series(labels, gauge.labels(labels.toArray(new String[0])), tierOf.applyAsInt(labels.get(NAME)));
+        s.changedAt = generation + 1;
+        structuredName(s);
+        byName.computeIfAbsent(labels.get(NAME), key -> ConcurrentHashMap.newKeySet()).add(s);
+        byKeyspace.computeIfAbsent(labels.get(KEYSPACE), key -> ConcurrentHashMap.newKeySet()).add(s);
+        byTier.computeIfAbsent(s.tier, key -> ConcurrentHashMap.newKeySet()).add(s);
+        return s;
+    }
+
+    private static <K> void unindex(ConcurrentMap<K, Set<Series>> index, K key, Series s) {
+        index.computeIfPresent(key, (k, set) -> {
+            set.remove(s);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    private static final class Series {
+        final List<String> labels;
+        final Gauge.Child child;
+        volatile int tier;
+        volatile StructuredName structured;
+        // Generation in which the value last changed, and line of the text format written for the last value
+        volatile long changedAt;
+        volatile Line line;
+        // Last value collected by changed(), and when
+        double collectedValue = Double.NaN;
+        long collectedAt;
+
+        Series(List<String> labels, Gauge.Child child, int tier) {
+            this.labels = labels;
+            this.child = child;
+            this.tier = tier;
+        }
+    }
+
+    private static final class Line {
+        final byte[] bytes;
+        final int prefixLength;
+        final long valueBits;
+        // Structured name the prefix was written for, null for the gauge name
+        final StructuredName structured;
+
+        Line(byte[] bytes, int prefixLength, long valueBits, StructuredName structured) {
+            this.bytes = bytes;
+            this.prefixLength = prefixLength;
+            this.valueBits = valueBits;
+            this.structured = structured;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.criteo.nosql.cassandra.exporter;
+
+import io.prometheus.client.Gauge;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Progress of the exporter from its start to its first complete scrap cycle.
+ * <p>
+ * The exporter is ready once the fastest tier has been scraped entirely, the node-level and the table MBeans, so a
+ * readiness probe doesn't send traffic to an exporter whose page is still empty or partial. The time each phase took
+ * is exported, to tell if a slow startup comes from the JMX connection, the discovery or the scraping.
+ */
+final class Startup {
+    private static final Logger logger = LoggerFactory.getLogger(Startup.class);
+
+    private static final Gauge phaseSeconds = Gauge.build()
+            .name("cassandra_exporter_startup_phase_seconds")
+            .help("Time the phases of the startup took, each one from the end of the previous one")
+            .labelNames("phase")
+            .register();
+    private static final Gauge readyGauge = Gauge.build()
+            .name("cassandra_exporter_ready")
+            .help("1 once the fastest tier has been scraped entirely at least once")
+            .register();
+
+    enum Phase {
+        // Connected, and the cluster, datacenter, keyspaces and tables of the node known
+        NODE_INFO,
+        // The node-level MBeans discovered and scraped, their metrics served
+        NODE_MBEANS,
+        // The MBeans of every table discovered
+        TABLE_DISCOVERY,
+        // The fastest tier scraped entirely, the exporter is ready
+        FASTEST_TIER,
+        // Every tier scraped
+        FIRST_CYCLE;
+
+        String label() {
+            return name().toLowerCase();
+        }
+    }
+
+    private final Set<Phase> completed = EnumSet.noneOf(Phase.class);
+    private final long startedAt;
+    private long lastCompletedAt;
+    private volatile boolean ready;
+
+    Startup() {
+        this.startedAt = System.currentTimeMillis();
+        this.lastCompletedAt = startedAt;
+    }
+
+    /**
+     * Record the end of a phase, the first time only, as the following cycles go through the same phases
+     */
+    synchronized void completed(Phase phase) {
+        if (!completed.add(phase)) return;
+
+        final long now = System.currentTimeMillis();
+        phaseSeconds.labels(phase.label()).set((now - lastCompletedAt) / 1000.0);
+        lastCompletedAt = now;
+        if (phase == Phase.FASTEST_TIER) {
+            ready = true;
+            readyGauge.set(1);
+            logger.info("Exporter ready {}ms after its start", now - startedAt);
+        }
+    }
+
+    boolean isReady() {
+        return ready;
+    }
+}
@@ -0,0 +1,142 @@
+package com.criteo.nosql.cassandra.exporter;
+
+import javax.management.ObjectName;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Metric family and labels of a series in the structured labels mode, where the MBean structure is split into labels
+ * instead of being flattened into the name label. For instance the Count of
+ * org.apache.cassandra.metrics:type=Table,keyspace=ks,scope=tbl,name=ReadLatency is exported as
+ * cassandra_table_readlatency{cluster="c",datacenter="dc",keyspace="ks",table="tbl",attribute="count"}
+ */
+final class StructuredName {
+    private static final String CASSANDRA_DOMAIN = "org.apache.cassandra";
+    private static final String METRICS_DOMAIN = CASSANDRA_DOMAIN + ".metrics";
+    private static final int CLUSTER = 0, DATACENTER = 1, KEYSPACE = 2, TABLE = 3, NAME = 4;
+    // Series mostly share the same few label names, keep a single copy of each of them
+    private static final Map<List<String>, List<String>> LABEL_NAMES = new ConcurrentHashMap<>();
+
+    final String family;
+    final String help;
+    final List<String> labelNames;
+    final List<String> labelValues;
+
+    private StructuredName(String family, String help, List<String> labelNames, List<String> labelValues) {
+        this.family = family;
+        this.help = help;
+        this.labelNames = labelNames;
+        this.labelValues = labelValues;
+    }
+
+    /**
+     * Family and labels shared by all the attributes of a MBean, computed once per ObjectName at discovery.
+     * <p>
+     * The family is named after the type of the MBean, and after its name for the Cassandra metrics, i.e
+     * cassandra_table_readlatency, cassandra_db_storageservice or jvm_garbagecollector. The other key properties are
+     * labels, but the keyspace and the table that are labels already.
+     */
+    static final class Layout {
+        final ObjectName mBeanName;
+        private final String family;
+        private final String help;
+        private final String[] keys;
+        private final String[] values;
+
+        private Layout(ObjectName mBeanName, String family, String help, String[] keys, String[] values) {
+            this.mBeanName = mBeanName;
+            this.family = family;
+            this.help = help;
+            this.keys = keys;
+            this.values = values;
+        }
+
+        static Layout of(ObjectName mBeanName) {
+            String domain = mBeanName.getDomain();
+            boolean metrics = domain.equals(METRICS_DOMAIN);
+            Map<String, String> properties = new TreeMap<>(mBeanName.getKeyPropertyList());
+            String type = properties.remove("type");
+            String name = metrics ? properties.remove("name") : null;
+
+            String prefix = metrics ? "cassandra"
+                    : domain.startsWith(CASSANDRA_DOMAIN + ".") ? "cassandra_" + domain.substring(CASSANDRA_DOMAIN.length() + 1)
+                    : domain.equals("java.lang") ? "jvm"
+                    : domain;
+            String family = sanitize(prefix + (type == null ? "" : "_" + type) + (name == null ? "" : "_" + name));
+            String help = domain + (type == null ? "" : ":type=" + type) + (name == null ? "" : ",name=" + name);
+
+            String[] keys = new String[properties.size()];
+            String[] values = new String[properties.size()];
+            int i = 0;
+            for (Map.Entry<String, String> property : properties.entrySet()) {
+                keys[i] = sanitize(property.getKey());
+                values[i] = unquote(property.getValue()).toLowerCase();
+                i++;
+            }
+            return new Layout(mBeanName, family, help, keys, values);
+        }
+
+        /**
+         * @param labelNames the label names of the series, additional ones included
+         * @param labels     the labels of the series, the metric name being the MBean path followed by the attribute
+         * @param attribute  the attribute part of the metric name, i.e count or heapmemoryusage:used
+         * @param aggregated if the series is a rollup of this MBean, whose keyspace and table labels are the rollup ones
+         */
+        StructuredName name(List<String> labelNames, List<String> labels, String attribute, boolean aggregated) {
+            // A rollup of the whole node keeps a keyspace label, as its name does in the flat mode, as it would get
+            // the labels of the global metric of Cassandra otherwise
+            String keyspace = aggregated && labels.get(KEYSPACE).isEmpty() ? Aggregator.ALL_KEYSPACES : labels.get(KEYSPACE);
+            String table = labels.get(TABLE);
+            List<String> seriesNames = new ArrayList<>(labels.size() + keys.length + 1);
+            List<String> seriesValues = new ArrayList<>(labels.size() + keys.length + 1);
+            seriesNames.add(labelNames.get(CLUSTER));
+            seriesValues.add(labels.get(CLUSTER));
+            seriesNames.add(labelNames.get(DATACENTER));
+            seriesValues.add(labels.get(DATACENTER));
+            // Empty labels are the same as missing ones for Prometheus
+            if (!keyspace.isEmpty()) {
+                seriesNames.add(labelNames.get(KEYSPACE));
+                seriesValues.add(keyspace);
+            }
+            if (!table.isEmpty()) {
+                seriesNames.add(labelNames.get(TABLE));
+                seriesValues.add(table);
+            }
+
+            for (int i = 0; i < keys.length; i++) {
+                if ((aggregated || (!keyspace.isEmpty() && values[i].equals(keyspace))) && keys[i].equals("keyspace")) continue;
+                if ((aggregated || (!table.isEmpty() && values[i].equals(table))) && (keys[i].equals("scope") || keys[i].equals("table") || keys[i].equals("columnfamily"))) continue;
+                seriesNames.add(seriesNames.contains(keys[i]) || labelNames.subList(NAME + 1, labelNames.size()).contains(keys[i]) || keys[i].equals("attribute") ? "mbean_" + keys[i] : keys[i]);
+                seriesValues.add(values[i]);
+            }
+
+            // Values of a whole keyspace or table, i.e PendingTasksByTableName, put them at the beginning of the attribute
+            if (!keyspace.isEmpty() && attribute.startsWith(keyspace + ":")) attribute = attribute.substring(keyspace.length() + 1);
+            if (!table.isEmpty() && attribute.startsWith(table + ":")) attribute = attribute.substring(table.length() + 1);
+            seriesNames.add("attribute");
+            seriesValues.add(attribute);
+
+            for (int i = NAME + 1; i < labels.size(); i++) {
+                seriesNames.add(labelNames.get(i));
+                seriesValues.add(labels.get(i));
+            }
+            return new StructuredName(family, help, LABEL_NAMES.computeIfAbsent(seriesNames, key -> key), seriesValues);
+        }
+    }
+
+    private static String unquote(String value) {
+        return value.startsWith("\"") ? ObjectName.unquote(value) : value;
+    }
+
+    /**
+     * Turn a MBean name or key into a valid Prometheus metric or label name
+     */
+    static String sanitize(String name) {
+        StringBuilder sanitized = new StringBuilder(name.length() + 1);
+        if (!name.isEmpty() && Character.isDigit(name.charAt(0))) sanitized.append('_');
+        for (char c : name.toLowerCase().toCharArray()) {
+            sanitized.append((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') ? c : '_');
+        }
+        return sanitized.toString();
+    }
+}
@@ -0,0 +1,60 @@
+package com.criteo.nosql.cassandra.exporter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Record what the exporter spends its time on as JDK Flight Recorder events, so slow cycles can be correlated with GC
+ * and Cassandra recordings. When the JVM has no Flight Recorder, spans do nothing and cost nothing.
+ * <p>
+ * Nothing here refers to jdk.jfr, the implementation is only loaded when the Flight Recorder is available.
+ */
+interface Tracer {
+    Tracer INSTANCE = Factory.create();
+
+    Span start(Kind kind);
+
+    enum Kind {
+        CYCLE, TIER, DISCOVERY, NODE_INFO, JMX_CALL, STALE_SWEEP, RENDER
+    }
+
+    /**
+     * A timed operation, recorded when it ends if the recording asks for it
+     */
+    interface Span {
+        Span NONE = (subject, detail, count) -> {
+        };
+
+        /**
+         * @param subject what the operation was about, i.e an ObjectName or a tier, only turned into a string if recorded
+         * @param detail  complement of the subject, i.e an attribute
+         * @param count   number of things processed, i.e attributes scraped or series removed
+         */
+        void end(Object subject, String detail, long count);
+    }
+
+    final class Factory {
+        private static final Logger logger = LoggerFactory.getLogger(Tracer.class);
+
+        private Factory() {
+        }
+
+        private static Tracer create() {
+            return create("jdk.jfr.FlightRecorder");
+        }
+
+        /**
+         * @param flightRecorderClass the class of the Flight Recorder, that may be missing from the JVM
+         */
+        static Tracer create(String flightRecorderClass) {
+            try {
+                if ((boolean) Class.forName(flightRecorderClass).getMethod("isAvailable").invoke(null)) {
+                    return (Tracer) Class.forName("com.criteo.nosql.cassandra.exporter.FlightRecorderTracer").getDeclaredConstructor().newInstance();
+                }
+            } catch (Throwable e) {
+                logger.debug("Flight Recorder is not available, the exporter events are disabled", e);
+            }
+            return kind -> Span.NONE;
+        }
+    }
+}
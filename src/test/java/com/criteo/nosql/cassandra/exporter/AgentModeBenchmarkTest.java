@@ -0,0 +1,169 @@
+package com.criteo.nosql.cassandra.exporter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compare the cost of a scrap cycle through RMI, as the standalone exporter does, and against the platform MBean server,
+ * as the agent does. Run it with gradle test -Dbenchmark=true
+ */
+public class AgentModeBenchmarkTest {
+    private static final int TABLES = Integer.getInteger("benchmark.tables", 200);
+    private static final int CYCLES = Integer.getInteger("benchmark.cycles", 5);
+
+    private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    private final List<ObjectName> registered = new ArrayList<>();
+    private Registry registry;
+    private JMXConnectorServer connectorServer;
+    private String jmxUrl;
+
+    public interface StorageServiceMBean {
+        String getClusterName();
+
+        String getLocalHostId();
+
+        Map<String, String> getHostIdToEndpoint();
+    }
+
+    public interface EndpointSnitchInfoMBean {
+        String getDatacenter(String endpoint);
+    }
+
+    public interface ColumnFamilyMBean {
+        String getColumnFamilyName();
+    }
+
+    public interface TimerMBean {
+        long getCount();
+
+        double getMeanRate();
+
+        double getOneMinuteRate();
+
+        double getFiveMinuteRate();
+
+        double getFifteenMinuteRate();
+
+        double get50thPercentile();
+
+        double get99thPercentile();
+
+        double getMax();
+
+        long[] getRecentValues();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+
+        register(new StorageServiceMBean() {
+            public String getClusterName() { return "cluster"; }
+            public String getLocalHostId() { return "host"; }
+            public Map<String, String> getHostIdToEndpoint() { return Collections.singletonMap("host", "127.0.0.1"); }
+        }, StorageServiceMBean.class, "org.apache.cassandra.db:type=StorageService");
+        register((EndpointSnitchInfoMBean) endpoint -> "dc", EndpointSnitchInfoMBean.class, "org.apache.cassandra.db:type=EndpointSnitchInfo");
+
+        for (int i = 0; i < TABLES; i++) {
+            String table = "tbl" + i;
+            register((ColumnFamilyMBean) () -> table, ColumnFamilyMBean.class, "org.apache.cassandra.db:type=ColumnFamilies,keyspace=ks,columnfamily=" + table);
+            for (String name : new String[]{"ReadLatency", "WriteLatency"}) {
+                register(new Timer(i), TimerMBean.class, "org.apache.cassandra.metrics:type=Table,keyspace=ks,scope=" + table + ",name=" + name);
+            }
+        }
+
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        registry = LocateRegistry.createRegistry(port);
+        jmxUrl = "service:jmx:rmi:///jndi/rmi://localhost:" + port + "/jmxrmi";
+        connectorServer = JMXConnectorServerFactory.newJMXConnectorServer(new JMXServiceURL(jmxUrl), null, server);
+        connectorServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (connectorServer != null) connectorServer.stop();
+        if (registry != null) UnicastRemoteObject.unexportObject(registry, true);
+        for (ObjectName name : registered) {
+            server.unregisterMBean(name);
+        }
+    }
+
+    @Test
+    public void benchmark_rmi_and_in_process_cycles() throws Exception {
+        JmxScraper scrapper = new JmxScraper(jmxUrl, JmxScraperTest.parse("maxScrapFrequencyInSec: {1: ['org:apache:cassandra:.*']}"), Collections.emptyMap());
+
+        try (JMXConnector connector = JMXConnectorFactory.connect(new JMXServiceURL(jmxUrl))) {
+            // Warm up discovery and the JIT for both paths
+            cycle(scrapper, connector.getMBeanServerConnection());
+            int series = scrapper.series().size();
+            cycle(scrapper, server);
+            assertEquals(series, scrapper.series().size());
+
+            long rmi = 0, inProcess = 0;
+            for (int i = 0; i < CYCLES; i++) {
+                rmi += cycle(scrapper, connector.getMBeanServerConnection());
+                inProcess += cycle(scrapper, server);
+            }
+            System.out.printf("%d series, mean cycle over %d cycles: rmi %.1fms, in process %.1fms%n",
+                    series, CYCLES, rmi / 1e6 / CYCLES, inProcess / 1e6 / CYCLES);
+        }
+    }
+
+    /**
+     * @return the duration of a full scrap cycle in ns
+     */
+    private static long cycle(JmxScraper scrapper, javax.management.MBeanServerConnection beanConn) throws Exception {
+        // Every metric is scraped each second, so wait for all of them to be due again
+        Thread.sleep(1000);
+        long start = System.nanoTime();
+        scrapper.run(beanConn, false, Optional.empty());
+        return System.nanoTime() - start;
+    }
+
+    private <T> void register(T mBean, Class<T> mBeanInterface, String name) throws Exception {
+        ObjectName objectName = ObjectName.getInstance(name);
+        server.registerMBean(new StandardMBean(mBean, mBeanInterface), objectName);
+        registered.add(objectName);
+    }
+
+    public static final class Timer implements TimerMBean {
+        private final long[] buckets = new long[165];
+
+        Timer(int seed) {
+            buckets[40 + seed % 20] = 100;
+            buckets[60] = 10;
+        }
+
+        public long getCount() { return 110; }
+        public double getMeanRate() { return 1; }
+        public double getOneMinuteRate() { return 1; }
+        public double getFiveMinuteRate() { return 1; }
+        public double getFifteenMinuteRate() { return 1; }
+        public double get50thPercentile() { return 5; }
+        public double get99thPercentile() { return 9; }
+        public double getMax() { return 10; }
+        public long[] getRecentValues() { return buckets; }
+    }
+}
@@ -0,0 +1,44 @@
+package com.criteo.nosql.cassandra.exporter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertFalse;
+
+public class AgentTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void test_cassandra_starts_when_the_listen_port_is_already_in_use() throws Exception {
+        try (ServerSocket taken = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"))) {
+            Agent.premain(config("listenAddress: 127.0.0.1\nlistenPort: " + taken.getLocalPort() + "\n"), null);
+        }
+        assertFalse(isScraping());
+    }
+
+    @Test
+    public void test_cassandra_starts_when_a_rule_is_invalid() throws Exception {
+        Agent.premain(config("listenAddress: 127.0.0.1\nlistenPort: 0\nblacklist:\n  - \"[\"\n"), null);
+        Agent.premain(config("listenAddress: 127.0.0.1\nlistenPort: 0\naggregations:\n  - metrics: .*\n    by: datacenter\n"), null);
+        Agent.premain(folder.getRoot().toPath().resolve("missing.yml").toString(), null);
+        assertFalse(isScraping());
+    }
+
+    private String config(String content) throws Exception {
+        Path path = folder.newFile().toPath();
+        Files.write(path, (content + "maxScrapFrequencyInSec:\n  50:\n    - .*\n").getBytes());
+        return path.toString();
+    }
+
+    private static boolean isScraping() {
+        return Thread.getAllStackTraces().keySet().stream().anyMatch(thread -> thread.getName().equals("cassandra-exporter"));
+    }
+}
@@ -0,0 +1,97 @@
+package com.criteo.nosql.cassandra.exporter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AggregatorTest {
+
+    private static Aggregator aggregator(String json) throws Exception {
+        List<Config.Aggregation> aggregations = Arrays.asList(new ObjectMapper().readValue(json, Config.Aggregation[].class));
+        return new Aggregator(aggregations);
+    }
+
+    @Test
+    public void test_keyspace_rollup_is_updated_incrementally() throws Exception {
+        Aggregator aggregator = aggregator("[{\"metrics\": \"org:apache:cassandra:metrics:table:.*:writelatency:count\", \"dropSource\": true}]");
+
+        Aggregator.Contribution a = aggregator.contributionFor("org:apache:cassandra:metrics:table:ks:a:writelatency:count");
+        Aggregator.Contribution b = aggregator.contributionFor("org:apache:cassandra:metrics:table:ks:b:writelatency:count");
+        assertNull(aggregator.contributionFor("org:apache:cassandra:metrics:table:ks:a:readlatency:count"));
+        assertSame(a, aggregator.contributionFor("org:apache:cassandra:metrics:table:ks:a:writelatency:count"));
+        assertSame(a.rollup, b.rollup);
+        assertTrue(a.dropSource);
+        assertEquals("org:apache:cassandra:metrics:table:ks:writelatency:count", a.rollup.metricName);
+        assertEquals("ks", a.rollup.keyspace);
+
+        a.set(10);
+        b.set(5);
+        a.set(12);
+        assertEquals(17.0, a.rollup.sum, 0.0);
+        assertTrue(a.rollup.dirty);
+
+        List<Aggregator.Rollup> removed = aggregator.retain(Collections.singleton("ks"), Collections.singleton("b"));
+        assertTrue(removed.isEmpty());
+        assertEquals(5.0, b.rollup.sum, 0.0);
+    }
+
+    @Test
+    public void test_non_finite_values_do_not_poison_the_rollup() throws Exception {
+        Aggregator aggregator = aggregator("[{\"metrics\": \"org:apache:cassandra:metrics:table:.*:keycachehitrate:value\"}]");
+
+        Aggregator.Contribution a = aggregator.contributionFor("org:apache:cassandra:metrics:table:ks:a:keycachehitrate:value");
+        Aggregator.Contribution b = aggregator.contributionFor("org:apache:cassandra:metrics:table:ks:b:keycachehitrate:value");
+        a.set(0.5);
+        b.set(Double.NaN);
+        assertEquals(0.5, a.rollup.sum, 0.0);
+        b.set(0.25);
+        assertEquals(0.75, a.rollup.sum, 0.0);
+        b.set(Double.POSITIVE_INFINITY);
+        assertEquals(0.5, a.rollup.sum, 0.0);
+    }
+
+    @Test
+    public void test_cluster_rollup_merges_histograms() throws Exception {
+        Aggregator aggregator = aggregator("[{\"metrics\": \".*:estimatedpartitionsizehistogram:value\", \"by\": \"cluster\"}]");
+
+        Aggregator.Contribution a = aggregator.contributionFor("org:apache:cassandra:metrics:table:ks1:a:estimatedpartitionsizehistogram:value");
+        Aggregator.Contribution b = aggregator.contributionFor("org:apache:cassandra:metrics:table:ks2:b:estimatedpartitionsizehistogram:value");
+        assertSame(a.rollup, b.rollup);
+        assertEquals("org:apache:cassandra:metrics:table:all-keyspaces:estimatedpartitionsizehistogram:value", a.rollup.metricName);
+        assertEquals("", a.rollup.keyspace);
+        assertFalse(a.dropSource);
+
+        a.set(new long[]{1, 2, 3});
+        b.set(new long[]{1, 1});
+        a.set(new long[]{2, 2});
+        assertArrayEquals(new long[]{3, 3, 0}, a.rollup.buckets);
+
+        List<Aggregator.Rollup> removed = aggregator.retain(new HashSet<>(Arrays.asList("ks1", "ks2")), Collections.emptySet());
+        assertEquals(Collections.singletonList(a.rollup), removed);
+        assertArrayEquals(new long[]{0, 0, 0}, a.rollup.buckets);
+    }
+
+    @Test
+    public void test_cluster_rollup_does_not_collide_with_the_global_metrics_of_cassandra() throws Exception {
+        Aggregator aggregator = aggregator("[{\"metrics\": \"org:apache:cassandra:metrics:table:[^:]+:[^:]+:(readlatency|writelatency):count\", \"by\": \"cluster\"}]");
+
+        // Global metric of all the tables, from org.apache.cassandra.metrics:type=Table,name=WriteLatency
+        String global = "org:apache:cassandra:metrics:table:writelatency:count";
+        assertNull(aggregator.contributionFor(global));
+        Aggregator.Contribution a = aggregator.contributionFor("org:apache:cassandra:metrics:table:ks:a:writelatency:count");
+        assertNotEquals(global, a.rollup.metricName);
+        assertEquals("org:apache:cassandra:metrics:table:all-keyspaces:writelatency:count", a.rollup.metricName);
+
+        // Nor with the keyspace rollups, whatever the keyspace is named
+        Aggregator byKeyspace = aggregator("[{\"metrics\": \"org:apache:cassandra:metrics:table:[^:]+:[^:]+:writelatency:count\"}]");
+        for (String keyspace : Arrays.asList("all", "all_keyspaces", "rollup")) {
+            assertNotEquals(a.rollup.metricName, byKeyspace.contributionFor("org:apache:cassandra:metrics:table:" + keyspace + ":a:writelatency:count").rollup.metricName);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.criteo.nosql.cassandra.exporter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.prometheus.client.CollectorRegistry;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CardinalityGuardTest {
+
+    private static final String PATH = "org:apache:cassandra:metrics:table:ks:";
+
+    @Test
+    public void test_least_active_tables_are_folded_when_budget_is_exceeded() throws Exception {
+        List<Config.SeriesBudget> budgets = Arrays.asList(new ObjectMapper().readValue("[{\"metrics\": \"org:apache:cassandra:metrics:table:.*\", \"maxSeries\": 2}]", Config.SeriesBudget[].class));
+        CardinalityGuard guard = new CardinalityGuard(budgets);
+
+        CardinalityGuard.Member[] members = new CardinalityGuard.Member[3];
+        for (int i = 0; i < members.length; i++) {
+            String metricName = PATH + "t" + i + ":writelatency:count";
+            members[i] = guard.memberFor(metricName, new String[]{metricName});
+            guard.activityFor(metricName).set(i * 10);
+        }
+        assertNull(guard.memberFor("org:apache:cassandra:metrics:keyspace:ks:writelatency:count", new String[]{"x"}));
+        assertTrue(guard.needsRanking());
+
+        List<CardinalityGuard.Member> folded = guard.rank();
+        assertFalse(guard.needsRanking());
+        assertEquals(Arrays.asList(members[1], members[0]), folded);
+
+        assertFalse(members[2].fold(20));
+        assertTrue(members[1].fold(10));
+        assertTrue(members[0].fold(1));
+        Aggregator.Rollup other = guard.others().rollups().iterator().next();
+        assertEquals("org:apache:cassandra:metrics:table:other:other:writelatency:count", other.metricName);
+        assertEquals(CardinalityGuard.OTHER, other.table);
+        assertEquals(11.0, other.sum, 0.0);
+    }
+
+    @Test
+    public void test_tables_are_ranked_again_and_unfolded_when_tables_are_created_or_dropped() throws Exception {
+        List<Config.SeriesBudget> budgets = Arrays.asList(new ObjectMapper().readValue("[{\"name\": \"guard-test\", \"metrics\": \"org:apache:cassandra:metrics:table:.*\", \"maxSeries\": 2}]", Config.SeriesBudget[].class));
+        CardinalityGuard guard = new CardinalityGuard(budgets);
+
+        CardinalityGuard.Member[] members = new CardinalityGuard.Member[3];
+        for (int i = 0; i < members.length; i++) {
+            String metricName = PATH + "t" + i + ":writelatency:count";
+            members[i] = guard.memberFor(metricName, new String[]{metricName});
+            guard.activityFor(metricName).set(i * 10);
+        }
+        assertEquals(Arrays.asList(members[1], members[0]), guard.rank());
+        assertEquals(2.0, CollectorRegistry.defaultRegistry.getSampleValue("cassandra_exporter_budget_folded_series", new String[]{"budget"}, new String[]{"guard-test"}), 0.0);
+        assertTrue(members[1].fold(10));
+        assertTrue(members[0].fold(1));
+        Aggregator.Rollup other = guard.others().rollups().iterator().next();
+
+        // Dropping the active table makes room for the folded ones, which are exported on their own again
+        guard.retain(Collections.singleton("ks"), new HashSet<>(Arrays.asList("t0", "t1")));
+        assertTrue(guard.needsRanking());
+        assertTrue(guard.rank().isEmpty());
+        assertFalse(members[0].fold(1));
+        assertFalse(members[1].fold(10));
+        assertEquals(0.0, other.sum, 0.0);
+        assertEquals(0.0, CollectorRegistry.defaultRegistry.getSampleValue("cassandra_exporter_budget_folded_series", new String[]{"budget"}, new String[]{"guard-test"}), 0.0);
+
+        // A new table exceeds the budget again, the least active since the previous ranking is folded
+        guard.activityFor(PATH + "t0:writelatency:count").set(100);
+        guard.activityFor(PATH + "t1:writelatency:count").set(15);
+        String metricName = PATH + "t3:writelatency:count";
+        CardinalityGuard.Member created = guard.memberFor(metricName, new String[]{metricName});
+        guard.activityFor(metricName).set(Double.NaN);
+        assertTrue(guard.needsRanking());
+        assertEquals(Arrays.asList(members[1], created), guard.rank());
+        assertFalse(members[0].fold(1));
+        assertTrue(created.fold(5));
+        assertTrue(members[1].fold(10));
+        assertEquals(15.0, other.sum, 0.0);
+    }
+
+    @Test
+    public void test_metrics_not_scraped_anymore_leave_their_budget() throws Exception {
+        List<Config.SeriesBudget> budgets = Arrays.asList(new ObjectMapper().readValue("[{\"metrics\": \"org:apache:cassandra:metrics:table:.*\", \"maxSeries\": 2}]", Config.SeriesBudget[].class));
+        CardinalityGuard guard = new CardinalityGuard(budgets);
+
+        CardinalityGuard.Member[] members = new CardinalityGuard.Member[3];
+        for (int i = 0; i < members.length; i++) {
+            String metricName = PATH + "t" + i + ":writelatency:count";
+            members[i] = guard.memberFor(metricName, new String[]{metricName});
+            guard.activityFor(metricName).set(i * 10);
+        }
+        assertEquals(Arrays.asList(members[1], members[0]), guard.rank());
+        assertTrue(members[1].fold(10));
+        assertTrue(members[0].fold(1));
+        Aggregator.Rollup other = guard.others().rollups().iterator().next();
+
+        // t0 is blacklisted, so the budget is not exceeded anymore
+        assertTrue(guard.retainMetrics(new HashSet<>(Arrays.asList(members[1].metricName, members[2].metricName))).isEmpty());
+        assertEquals(10.0, other.sum, 0.0);
+        assertTrue(guard.needsRanking());
+        assertTrue(guard.rank().isEmpty());
+        assertFalse(members[1].fold(10));
+        assertEquals(0.0, other.sum, 0.0);
+
+        // Once none of its metrics is scraped anymore, the other table is left without any source and must not be exported anymore
+        assertEquals(Collections.singletonList(other), guard.retainMetrics(Collections.emptySet()));
+        assertTrue(guard.rank().isEmpty());
+    }
+}
@@ -0,0 +1,39 @@
+package com.criteo.nosql.cassandra.exporter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConfigWatcherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void test_only_changed_and_valid_configs_are_handed_over() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("config.yml");
+        Files.write(path, "blacklist:\n  - a\n".getBytes());
+        List<Config> reloaded = new ArrayList<>();
+        ConfigWatcher watcher = new ConfigWatcher(path, reloaded::add);
+
+        watcher.checkForChange();
+        assertEquals(0, reloaded.size());
+
+        Files.write(path, "blacklist:\n  - b\n".getBytes());
+        watcher.checkForChange();
+        watcher.checkForChange();
+        assertEquals(1, reloaded.size());
+        assertEquals("b", reloaded.get(0).getBlacklist().get(0));
+
+        Files.write(path, "blacklist: [\n".getBytes());
+        watcher.checkForChange();
+        assertEquals(1, reloaded.size());
+    }
+}
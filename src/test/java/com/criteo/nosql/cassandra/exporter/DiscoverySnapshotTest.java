@@ -0,0 +1,57 @@
+package com.criteo.nosql.cassandra.exporter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.management.MBeanAttributeInfo;
+import javax.management.ObjectName;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class DiscoverySnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void test_snapshot_round_trip() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("snapshot.bin");
+        ObjectName mBeanName = ObjectName.getInstance("org.apache.cassandra.metrics:type=Table,keyspace=ks,scope=tbl,name=ReadLatency");
+        MBeanAttributeInfo attribute = new MBeanAttributeInfo("Count", "long", "", true, false, false);
+
+        Map<String, MBeanAttributeInfo[]> attributes = new HashMap<>();
+        attributes.put("4TableReadLatency", new MBeanAttributeInfo[]{attribute});
+        Map<String, String> durationUnits = Collections.singletonMap("4TableReadLatency", "microseconds");
+        Map<ObjectName, List<JmxScraper.MBeanInfo>> plan = new HashMap<>();
+        plan.put(mBeanName, Collections.singletonList(new JmxScraper.MBeanInfo("org:apache:cassandra:metrics:table:ks:tbl:readlatency:count", mBeanName, attribute, 50000)));
+        List<DiscoverySnapshot.Sample> samples = Collections.singletonList(new DiscoverySnapshot.Sample(new String[]{"cluster", "dc", "ks", "tbl", "org:apache:cassandra:metrics:table:ks:tbl:readlatency:count"}, 42.0));
+
+        new DiscoverySnapshot(1234L, 99, attributes, durationUnits, plan, samples).save(path);
+        Optional<DiscoverySnapshot> loaded = DiscoverySnapshot.load(path);
+
+        assertTrue(loaded.isPresent());
+        assertEquals(1234L, loaded.get().savedAt);
+        assertEquals(99, loaded.get().rulesFingerprint);
+        assertEquals("long", loaded.get().attributes.get("4TableReadLatency")[0].getType());
+        assertEquals(durationUnits, loaded.get().durationUnits);
+        JmxScraper.MBeanInfo mBeanInfo = loaded.get().plan.get(mBeanName).get(0);
+        assertEquals("org:apache:cassandra:metrics:table:ks:tbl:readlatency:count", mBeanInfo.metricName);
+        assertEquals("Count", mBeanInfo.attribute.getName());
+        assertEquals(50000, mBeanInfo.frequency);
+        assertArrayEquals(samples.get(0).labels, loaded.get().samples.get(0).labels);
+        assertEquals(42.0, loaded.get().samples.get(0).value, 0.0);
+    }
+
+    @Test
+    public void test_corrupted_snapshot_is_ignored() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("snapshot.bin");
+        Files.write(path, new byte[]{1, 2, 3});
+
+        assertFalse(DiscoverySnapshot.load(path).isPresent());
+        assertFalse(DiscoverySnapshot.load(folder.getRoot().toPath().resolve("missing.bin")).isPresent());
+    }
+}
@@ -0,0 +1,178 @@
+package com.criteo.nosql.cassandra.exporter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.exporter.HTTPServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Load test of the exposition server against the prometheus client http server that the exporter used before, with
+ * fast clients pulling the metrics page in a loop, then with stalled clients that never read their response.
+ * Run it with gradle test -Dbenchmark=true
+ */
+public class ExpositionServerBenchmarkTest {
+    private static final int SERIES = Integer.getInteger("benchmark.series", 30000);
+    private static final int CLIENTS = Integer.getInteger("benchmark.clients", 4);
+    private static final int STALLED = Integer.getInteger("benchmark.stalled", 8);
+    private static final int DURATION_MS = Integer.getInteger("benchmark.durationInMs", 5000);
+    private static final int TIMEOUT_MS = 5000;
+
+    private static final List<String> LABEL_NAMES = Arrays.asList("cluster", "datacenter", "keyspace", "table", "name");
+
+    private final CollectorRegistry registry = new CollectorRegistry();
+    private Gauge gauge;
+    private SeriesIndex index;
+    private final List<Socket> stalled = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+
+        gauge = Gauge.build().name("cassandra_stats").help("node stats").labelNames(LABEL_NAMES.toArray(new String[0])).create();
+        index = new SeriesIndex(gauge, LABEL_NAMES, name -> 60000);
+        for (int i = 0; i < SERIES; i++) {
+            index.set(new String[]{"cluster", "dc", "ks", "tbl" + i / 25, "org:apache:cassandra:metrics:table:ks:tbl" + i / 25 + ":metric" + i % 25 + ":count"}, i);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (Socket socket : stalled) socket.close();
+    }
+
+    @Test
+    public void benchmark_prometheus_client_and_exposition_servers() throws Exception {
+        // The previous server: a backlog of 3 connections and a fixed pool of 5 threads, serving the gauge from the registry
+        HttpServer previous = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 3);
+        CollectorRegistry previousRegistry = new CollectorRegistry();
+        gauge.register(previousRegistry);
+        try (HTTPServer prometheusServer = new HTTPServer(previous, previousRegistry, true)) {
+            run("prometheus client", prometheusServer.getPort(), "/-/healthy");
+        }
+
+        Config cfg = new ObjectMapper().readValue("{\"listenAddress\": \"127.0.0.1\", \"listenPort\": 0}", Config.class);
+        ExpositionServer server = ExpositionServer.start(cfg, index, Optional.empty(), () -> true, registry, true);
+        try {
+            run("exposition", server.port(), ExpositionServer.HEALTH_PATH);
+        } finally {
+            server.stop();
+        }
+    }
+
+    private void run(String serverName, int port, String healthPath) throws Exception {
+        // Warm up the JIT
+        for (int i = 0; i < 5; i++) get(port, "/metrics", true);
+
+        Stats fast = load(port, "/metrics");
+        System.out.printf("%s server, %d series, %d clients: %s%n", serverName, SERIES, CLIENTS, fast);
+
+        for (int i = 0; i < STALLED; i++) stalled.add(stall(port));
+        Thread.sleep(500);
+        Stats health = new Stats();
+        Stats metrics = new Stats();
+        for (int i = 0; i < 10; i++) {
+            health.add(get(port, healthPath, false));
+            metrics.add(get(port, "/metrics", true));
+        }
+        System.out.printf("%s server, %d stalled clients: health %s, metrics %s%n", serverName, STALLED, health, metrics);
+        for (Socket socket : stalled) socket.close();
+        stalled.clear();
+    }
+
+    private Stats load(int port, String path) throws Exception {
+        Stats stats = new Stats();
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        long end = System.currentTimeMillis() + DURATION_MS;
+        for (int i = 0; i < CLIENTS; i++) {
+            clients.submit(() -> {
+                while (System.currentTimeMillis() < end) stats.add(get(port, path, true));
+                return null;
+            });
+        }
+        clients.shutdown();
+        clients.awaitTermination(DURATION_MS + 10L * TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        stats.durationMs = DURATION_MS;
+        return stats;
+    }
+
+    /**
+     * A client sending a request then never reading the response, with a receive buffer as small as possible
+     */
+    private static Socket stall(int port) throws IOException {
+        Socket socket = new Socket();
+        socket.setReceiveBufferSize(1024);
+        socket.connect(new InetSocketAddress("127.0.0.1", port));
+        socket.getOutputStream().write("GET /metrics HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        return socket;
+    }
+
+    /**
+     * @return the status and duration in ns of a request, the status being -1 when it timed out
+     */
+    private static long[] get(int port, String path, boolean gzip) {
+        long start = System.nanoTime();
+        int status;
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + path).openConnection();
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            if (gzip) connection.setRequestProperty("Accept-Encoding", "gzip");
+            status = connection.getResponseCode();
+            try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                if (in != null) while (in.read(new byte[8192]) != -1) ;
+            }
+        } catch (IOException e) {
+            status = -1;
+        }
+        return new long[]{status, System.nanoTime() - start};
+    }
+
+    private static final class Stats {
+        private final List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicLong ok = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong timedOut = new AtomicLong();
+        private long durationMs;
+
+        void add(long[] result) {
+            if (result[0] == 200) {
+                ok.incrementAndGet();
+                latencies.add(result[1]);
+            } else if (result[0] == 503) {
+                rejected.incrementAndGet();
+            } else {
+                timedOut.incrementAndGet();
+            }
+        }
+
+        @Override
+        public String toString() {
+            List<Long> sorted = new ArrayList<>(latencies);
+            Collections.sort(sorted);
+            String rate = durationMs > 0 ? String.format(" %.1f/s", ok.get() * 1000.0 / durationMs) : "";
+            return String.format("%d ok%s, %d rejected, %d timed out, p50 %.1fms, p99 %.1fms", ok.get(), rate, rejected.get(), timedOut.get(),
+                    percentile(sorted, 0.5), percentile(sorted, 0.99));
+        }
+
+        private static double percentile(List<Long> sorted, double rank) {
+            return sorted.isEmpty() ? Double.NaN : sorted.get((int) Math.min(sorted.size() - 1, Math.floor(rank * sorted.size()))) / 1e6;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.criteo.nosql.cassandra.exporter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class ExpositionServerTest {
+
+    private static final List<String> LABEL_NAMES = Arrays.asList("cluster", "datacenter", "keyspace", "table", "name");
+
+    private final CollectorRegistry registry = new CollectorRegistry();
+    private ExpositionServer server;
+
+    @After
+    public void tearDown() {
+        if (server != null) server.stop();
+    }
+
+    @Test
+    public void test_health_is_served_while_every_metrics_slot_is_held() throws Exception {
+        CountDownLatch rendering = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        new Collector() {
+            @Override
+            public List<MetricFamilySamples> collect() {
+                rendering.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return Collections.emptyList();
+            }
+        }.register(registry);
+        server = ExpositionServer.start(config(1), newIndex(), Optional.empty(), () -> true, registry, true);
+
+        ExecutorService client = Executors.newSingleThreadExecutor();
+        Future<Integer> stalled = client.submit(() -> get("/metrics").getResponseCode());
+        assertTrue(rendering.await(10, TimeUnit.SECONDS));
+
+        HttpURLConnection rejected = get("/metrics");
+        assertEquals(503, rejected.getResponseCode());
+        assertEquals("1", rejected.getHeaderField("Retry-After"));
+        HttpURLConnection health = get(ExpositionServer.HEALTH_PATH);
+        assertEquals(200, health.getResponseCode());
+        assertEquals("Exporter is Healthy.\n", read(health.getInputStream()));
+
+        release.countDown();
+        assertEquals(200, (int) stalled.get(10, TimeUnit.SECONDS));
+        assertEquals(200, get("/metrics").getResponseCode());
+        client.shutdown();
+    }
+
+    @Test
+    public void test_ready_once_the_exporter_says_so() throws Exception {
+        AtomicBoolean ready = new AtomicBoolean();
+        server = ExpositionServer.start(config(1), newIndex(), Optional.empty(), ready::get, registry, true);
+
+        HttpURLConnection starting = get(ExpositionServer.READY_PATH);
+        assertEquals(503, starting.getResponseCode());
+        assertEquals(200, get(ExpositionServer.HEALTH_PATH).getResponseCode());
+
+        ready.set(true);
+        HttpURLConnection started = get(ExpositionServer.READY_PATH);
+        assertEquals(200, started.getResponseCode());
+        assertEquals("Exporter is Ready.\n", read(started.getInputStream()));
+    }
+
+    @Test
+    public void test_pages_are_streamed_in_chunks_on_kept_alive_connections() throws Exception {
+        SeriesIndex index = newIndex();
+        for (int i = 0; i < 2000; i++) {
+            index.set(new String[]{"c", "dc", "ks", "tbl" + i, "org:apache:cassandra:metrics:table:ks:tbl" + i + ":readlatency:count"}, i);
+        }
+        server = ExpositionServer.start(config(4), index, Optional.empty(), () -> true, registry, true);
+
+        try (Socket socket = new Socket("127.0.0.1", server.port())) {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            for (String path : new String[]{"/metrics", "/metrics?keyspace=ks", "/"}) {
+                socket.getOutputStream().write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                Map<String, String> headers = readHeaders(in);
+                assertEquals(path, "HTTP/1.1 200 OK", headers.get(""));
+                assertEquals(path, "chunked", headers.get("transfer-encoding"));
+                String page = readChunks(in);
+                assertTrue(path, page.contains("tbl1999:readlatency:count\",} 1999.0"));
+            }
+        }
+    }
+
+    @Test
+    public void test_delta_pages_only_hold_the_changes_since_the_previous_one() throws Exception {
+        SeriesIndex index = newIndex();
+        index.set(new String[]{"c", "dc", "ks", "tbl", "org:apache:cassandra:metrics:table:ks:tbl:readlatency:count"}, 1);
+        index.set(new String[]{"c", "dc", "ks", "tbl", "org:apache:cassandra:metrics:table:ks:tbl:writelatency:count"}, 2);
+        index.publish();
+        server = ExpositionServer.start(config(4), index, Optional.empty(), () -> true, registry, true);
+
+        HttpURLConnection full = get(ExpositionHandler.DELTA_PATH);
+        assertEquals("full", full.getHeaderField(ExpositionHandler.DELTA_HEADER));
+        assertEquals(2, read(full.getInputStream()).split("\n").length - 2);
+
+        index.set(new String[]{"c", "dc", "ks", "tbl", "org:apache:cassandra:metrics:table:ks:tbl:readlatency:count"}, 1);
+        index.set(new String[]{"c", "dc", "ks", "tbl", "org:apache:cassandra:metrics:table:ks:tbl:writelatency:count"}, 3);
+        index.publish();
+        HttpURLConnection changes = get(ExpositionHandler.DELTA_PATH + "?since=" + full.getHeaderField(ExpositionHandler.GENERATION_HEADER));
+        assertEquals("changes", changes.getHeaderField(ExpositionHandler.DELTA_HEADER));
+        assertEquals(String.valueOf(index.generation()), changes.getHeaderField(ExpositionHandler.GENERATION_HEADER));
+        String page = read(changes.getInputStream());
+        assertTrue(page, page.endsWith("writelatency:count\",} 3.0\n") && !page.contains("readlatency"));
+
+        assertEquals(400, get(ExpositionHandler.DELTA_PATH + "?since=last").getResponseCode());
+    }
+
+    @Test
+    public void test_buffered_samples_are_served_for_backfilling() throws Exception {
+        SeriesIndex index = newIndex();
+        SampleBuffer buffer = new SampleBuffer(index, 3600_000, 1 << 20);
+        index.set(new String[]{"c", "dc", "ks", "tbl", "org:apache:cassandra:metrics:table:ks:tbl:readlatency:count"}, 1);
+        buffer.tierScraped(60000, 1_000_000_000_000L);
+        index.set(new String[]{"c", "dc", "ks", "tbl", "org:apache:cassandra:metrics:table:ks:tbl:readlatency:count"}, 2);
+        buffer.tierScraped(60000, 1_000_000_060_000L);
+        server = ExpositionServer.start(config(4), index, Optional.of(buffer), () -> true, registry, true);
+
+        HttpURLConnection backfill = get(ExpositionHandler.BACKFILL_PATH + "?keyspace=ks");
+        assertEquals(SampleBuffer.CONTENT_TYPE, backfill.getContentType());
+        String page = read(backfill.getInputStream());
+        assertTrue(page, page.contains("readlatency:count\"} 1.0 1000000000.000\n") && page.endsWith("readlatency:count\"} 2.0 1000000060.000\n# EOF\n"));
+
+        server.stop();
+        server = ExpositionServer.start(config(4), index, Optional.empty(), () -> true, registry, true);
+        assertEquals(404, get(ExpositionHandler.BACKFILL_PATH).getResponseCode());
+    }
+
+    @Test
+    public void test_pages_not_sent_within_the_response_timeout_are_cut_as_an_agent() throws Exception {
+        new Collector() {
+            @Override
+            public List<MetricFamilySamples> collect() {
+                try {
+                    Thread.sleep(1500);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                Gauge gauge = Gauge.build().name("slow").help("test").create();
+                gauge.set(1);
+                return gauge.collect();
+            }
+        }.register(registry);
+        Config cfg = new ObjectMapper().readValue("{\"listenAddress\": \"127.0.0.1\", \"listenPort\": 0, \"http\": {\"responseTimeoutInSec\": 1}}", Config.class);
+        server = ExpositionServer.start(cfg, newIndex(), Optional.empty(), () -> true, registry, true);
+
+        HttpURLConnection metrics = get("/metrics");
+        assertEquals(200, metrics.getResponseCode());
+        try {
+            String page = read(metrics.getInputStream());
+            fail("The page should have been cut: " + page);
+        } catch (IOException e) {
+            // Cut before its end
+        }
+        assertEquals(200, get(ExpositionServer.HEALTH_PATH).getResponseCode());
+    }
+
+    @Test
+    public void test_requests_above_max_connections_wait_for_a_thread_without_virtual_threads() throws Exception {
+        Config.Http http = new ObjectMapper().readValue("{\"maxConnections\": 2}", Config.Http.class);
+        ExecutorService executor = ExpositionServer.newExecutor(http, true);
+        try {
+            assumeTrue(executor instanceof ThreadPoolExecutor);
+            int maxThreads = 2 + ExpositionServer.STATUS_THREADS;
+            assertEquals(maxThreads, ((ThreadPoolExecutor) executor).getMaximumPoolSize());
+
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(maxThreads + 1);
+            for (int i = 0; i < maxThreads + 1; i++) {
+                executor.execute(() -> {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    done.countDown();
+                });
+            }
+            assertEquals(maxThreads, ((ThreadPoolExecutor) executor).getPoolSize());
+            assertEquals(1, ((ThreadPoolExecutor) executor).getQueue().size());
+
+            release.countDown();
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Config config(int maxConcurrentRequests) throws IOException {
+        return new ObjectMapper().readValue(String.format("{\"listenAddress\": \"127.0.0.1\", \"listenPort\": 0, \"http\": {\"maxConcurrentRequests\": %d}}", maxConcurrentRequests), Config.class);
+    }
+
+    private SeriesIndex newIndex() {
+        Gauge gauge = Gauge.build().name("cassandra_stats").help("test").labelNames(LABEL_NAMES.toArray(new String[0])).create();
+        return new SeriesIndex(gauge, LABEL_NAMES, name -> 60000);
+    }
+
+    private HttpURLConnection get(String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + server.port() + path).openConnection();
+        connection.setReadTimeout(10000);
+        return connection;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int read; (read = in.read(buffer)) != -1; ) out.write(buffer, 0, read);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the headers by lowercase name, the status line being under the empty name
+     */
+    private static Map<String, String> readHeaders(InputStream in) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("", readLine(in));
+        for (String line; !(line = readLine(in)).isEmpty(); ) {
+            int pos = line.indexOf(':');
+            headers.put(line.substring(0, pos).trim().toLowerCase(), line.substring(pos + 1).trim());
+        }
+        return headers;
+    }
+
+    private static String readChunks(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int size; (size = Integer.parseInt(readLine(in).trim(), 16)) > 0; ) {
+            byte[] chunk = new byte[size];
+            new DataInputStream(in).readFully(chunk);
+            body.write(chunk);
+            readLine(in);
+        }
+        readLine(in);
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int c; (c = in.read()) != '\n'; ) {
+            if (c == -1) throw new EOFException();
+            if (c != '\r') line.append((char) c);
+        }
+        return line.toString();
+    }
+}
@@ -0,0 +1,57 @@
+package com.criteo.nosql.cassandra.exporter;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * MBean server of a Cassandra node, only exposing what the scraper needs to identify the node and its tables.
+ * Each test registers the MBeans it scrapes on top of them
+ */
+final class FakeNode {
+    final MBeanServer server = MBeanServerFactory.newMBeanServer();
+
+    public interface StorageServiceMBean {
+        String getClusterName();
+
+        String getLocalHostId();
+
+        Map<String, String> getHostIdToEndpoint();
+    }
+
+    public interface EndpointSnitchInfoMBean {
+        String getDatacenter(String endpoint);
+    }
+
+    public interface ColumnFamilyMBean {
+        String getColumnFamilyName();
+    }
+
+    /**
+     * @param tables the tables of the node, as keyspace.table
+     */
+    FakeNode(String... tables) throws Exception {
+        register(new StorageServiceMBean() {
+            public String getClusterName() { return "cluster"; }
+            public String getLocalHostId() { return "host"; }
+            public Map<String, String> getHostIdToEndpoint() { return Collections.singletonMap("host", "127.0.0.1"); }
+        }, StorageServiceMBean.class, "org.apache.cassandra.db:type=StorageService");
+        register((EndpointSnitchInfoMBean) endpoint -> "dc", EndpointSnitchInfoMBean.class, "org.apache.cassandra.db:type=EndpointSnitchInfo");
+        for (String table : tables) {
+            String[] path = table.split("\\.");
+            register((ColumnFamilyMBean) () -> path[1], ColumnFamilyMBean.class, "org.apache.cassandra.db:type=ColumnFamilies,keyspace=" + path[0] + ",columnfamily=" + path[1]);
+        }
+    }
+
+    <T> FakeNode register(T mBean, Class<T> mBeanInterface, String name) throws Exception {
+        server.registerMBean(new StandardMBean(mBean, mBeanInterface), ObjectName.getInstance(name));
+        return this;
+    }
+
+    void unregister(String name) throws Exception {
+        server.unregisterMBean(ObjectName.getInstance(name));
+    }
+}
@@ -0,0 +1,111 @@
+package com.criteo.nosql.cassandra.exporter;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.management.ObjectName;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class FlightRecorderTracerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void flightRecorderIsAvailable() {
+        assumeTrue(Tracer.INSTANCE instanceof FlightRecorderTracer);
+    }
+
+    @Test
+    public void test_spans_are_only_allocated_while_recorded() throws Exception {
+        Tracer tracer = new FlightRecorderTracer();
+        assertSame(Tracer.Span.NONE, tracer.start(Tracer.Kind.JMX_CALL));
+
+        List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            recording.enable("cassandra_exporter.JmxCall").withThreshold(Duration.ZERO);
+            recording.start();
+            Tracer.Span span = tracer.start(Tracer.Kind.JMX_CALL);
+            assertNotSame(Tracer.Span.NONE, span);
+            span.end(new ObjectName("org.apache.cassandra.metrics:type=Table,name=ReadLatency"), "Count", 1);
+            events = stop(recording);
+        }
+        assertSame(Tracer.Span.NONE, tracer.start(Tracer.Kind.JMX_CALL));
+
+        assertEquals(1, events.size());
+        assertEquals("org.apache.cassandra.metrics:type=Table,name=ReadLatency", events.get(0).getString("subject"));
+        assertEquals("Count", events.get(0).getString("detail"));
+        assertEquals(1, events.get(0).getLong("count"));
+    }
+
+    @Test
+    public void test_cycle_span_ends_when_the_node_is_unresponsive() throws Exception {
+        // No StorageService, so the node info cannot be fetched and the cycle is cut short before any tier
+        FakeNode node = new FakeNode();
+        node.unregister("org.apache.cassandra.db:type=StorageService");
+        JmxScraper scraper = JmxScraperTest.scraper("maxScrapFrequencyInSec: {1: ['.*']}");
+
+        List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            recording.enable("cassandra_exporter.Cycle");
+            recording.enable("cassandra_exporter.Tier");
+            recording.start();
+            scraper.run(node.server, false, Optional.empty());
+            events = stop(recording);
+        }
+
+        assertEquals(Collections.emptyList(), names(events, "cassandra_exporter.Tier"));
+        assertEquals(Collections.singletonList("cassandra_exporter.Cycle"), names(events, "cassandra_exporter.Cycle"));
+    }
+
+    @Test
+    public void test_tier_spans_only_cover_their_own_pass() throws Exception {
+        FakeNode node = new FakeNode("ks.tbl");
+        node.register(new JmxScraperTest.Gauge(1), JmxScraperTest.GaugeMBean.class, "org.apache.cassandra.metrics:type=Table,keyspace=ks,scope=tbl,name=TierSpanFast");
+        node.register(new JmxScraperTest.Gauge(2), JmxScraperTest.GaugeMBean.class, "org.apache.cassandra.metrics:type=Table,keyspace=ks,scope=tbl,name=TierSpanSlow");
+        node.register(new JmxScraperTest.Gauge(3), JmxScraperTest.GaugeMBean.class, "org.apache.cassandra.metrics:type=TierSpanNode,name=Value");
+        JmxScraper scraper = JmxScraperTest.scraper("maxScrapFrequencyInSec: {1: ['.*:tierspanfast:.*'], 2: ['.*:tierspanslow:.*'], 3: ['.*:tierspannode:.*']}");
+
+        List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            recording.enable("cassandra_exporter.Tier");
+            recording.start();
+            scraper.run(node.server, false, Optional.empty());
+            events = stop(recording);
+        }
+
+        // The node MBeans are scraped before the tiers, by the cycle itself
+        List<RecordedEvent> tiers = events.stream().filter(event -> event.getEventType().getName().equals("cassandra_exporter.Tier")).collect(toList());
+        assertEquals(Arrays.asList("1", "2", "3"), tiers.stream().map(event -> event.getString("subject")).collect(toList()));
+        assertEquals(Arrays.asList(1L, 1L, 0L), tiers.stream().map(event -> event.getLong("count")).collect(toList()));
+        assertTrue(tiers.get(0).getEndTime().compareTo(tiers.get(1).getStartTime()) <= 0);
+    }
+
+    private List<RecordedEvent> stop(Recording recording) throws Exception {
+        recording.stop();
+        Path path = folder.newFile("recording.jfr").toPath();
+        recording.dump(path);
+        return RecordingFile.readAllEvents(path);
+    }
+
+    private static List<String> names(List<RecordedEvent> events, String name) {
+        return events.stream().map(event -> event.getEventType().getName()).filter(name::equals).collect(toList());
+    }
+}
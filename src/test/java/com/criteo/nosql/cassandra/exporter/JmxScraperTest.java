@@ -1,13 +1,80 @@
 package com.criteo.nosql.cassandra.exporter;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.management.MBeanAttributeInfo;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 
 public class JmxScraperTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    public interface PrimitivesMBean {
+        long getLong();
+
+        int getInt();
+
+        double getDouble();
+
+        boolean getBoolean();
+    }
+
+    public interface GaugeMBean {
+        Object getValue();
+    }
+
+    public interface MeterMBean {
+        long getCount();
+
+        double getMeanRate();
+
+        double getOneMinuteRate();
+
+        double getFiveMinuteRate();
+
+        double getFifteenMinuteRate();
+
+        String getRateUnit();
+    }
+
+    public interface TimerMBean extends MeterMBean {
+        double get50thPercentile();
+
+        double get999thPercentile();
+
+        double getMean();
+
+        double getMax();
+
+        long[] getRecentValues();
+
+        String getDurationUnit();
+    }
+
     @Test
     public void test_concat_concatenates_array_contents() {
         String[] arrayA = new String[]{"foo","bar","1"};
@@ -24,4 +91,465 @@ public class JmxScraperTest {
         assertThat(JmxScraper.concat(arrayA, arrayB), instanceOf(String[].class));
     }
 
+    @Test
+    public void test_counters_only_keeps_count_and_buckets_of_timers() {
+        MBeanAttributeInfo[] timer = attributes("Count", "long", "50thPercentile", "double", "Max", "double", "MeanRate", "double",
+                "OneMinuteRate", "double", "FiveMinuteRate", "double", "FifteenMinuteRate", "double", "RecentValues", "[J", "DurationUnit", "java.lang.String");
+        MBeanAttributeInfo[] meter = attributes("Count", "long", "MeanRate", "double", "OneMinuteRate", "double",
+                "FiveMinuteRate", "double", "FifteenMinuteRate", "double", "RateUnit", "java.lang.String");
+        MBeanAttributeInfo[] gauge = attributes("Value", "java.lang.Object");
+
+        assertArrayEquals(new String[]{"Count", "RecentValues"}, names(JmxScraper.counterAttributes(timer, true)));
+        assertArrayEquals(new String[]{"Count", "RateUnit"}, names(JmxScraper.counterAttributes(meter, true)));
+        assertSame(gauge, JmxScraper.counterAttributes(gauge, true));
+
+        // The buckets cannot be used when the unit of the timer is not known
+        assertArrayEquals(new String[]{"Count", "50thPercentile", "Max", "RecentValues", "DurationUnit"}, names(JmxScraper.counterAttributes(timer, false)));
+    }
+
+    @Test
+    public void test_counters_only_keeps_percentiles_of_timers_without_buckets() {
+        MBeanAttributeInfo[] timer = attributes("Count", "long", "50thPercentile", "double", "Max", "double", "MeanRate", "double",
+                "OneMinuteRate", "double", "FiveMinuteRate", "double", "FifteenMinuteRate", "double");
+
+        assertArrayEquals(new String[]{"Count", "50thPercentile", "Max"}, names(JmxScraper.counterAttributes(timer, true)));
+    }
+
+    @Test
+    public void test_mbeans_of_keyspaces_and_tables_come_after_the_node_ones() throws Exception {
+        assertTrue(JmxScraper.isTableMBean(new ObjectName("org.apache.cassandra.metrics:type=Table,keyspace=ks,scope=tbl,name=ReadLatency")));
+        assertTrue(JmxScraper.isTableMBean(new ObjectName("org.apache.cassandra.metrics:type=Keyspace,keyspace=ks,name=WriteLatency")));
+        assertTrue(JmxScraper.isTableMBean(new ObjectName("org.apache.cassandra.db:type=ColumnFamilies,keyspace=ks,columnfamily=tbl")));
+        assertFalse(JmxScraper.isTableMBean(new ObjectName("org.apache.cassandra.metrics:type=Table,name=ReadLatency")));
+        assertFalse(JmxScraper.isTableMBean(new ObjectName("org.apache.cassandra.db:type=StorageService")));
+    }
+
+    @Test
+    public void test_values_are_decoded_after_their_type() throws Exception {
+        long[] buckets = new long[20];
+        buckets[5] = 10;
+        buckets[12] = 1;
+        FakeNode node = new FakeNode("ks.tbl")
+                .register(new PrimitivesMBean() {
+                    public long getLong() { return 1L; }
+                    public int getInt() { return 2; }
+                    public double getDouble() { return 3.5; }
+                    public boolean getBoolean() { return true; }
+                }, PrimitivesMBean.class, "org.apache.cassandra.metrics:type=Decoders,name=Primitives")
+                .register(new Gauge(4L), GaugeMBean.class, "org.apache.cassandra.metrics:type=Decoders,name=BoxedLong")
+                .register(new Gauge(5), GaugeMBean.class, "org.apache.cassandra.metrics:type=Decoders,name=BoxedInteger")
+                .register(new Gauge(6.5), GaugeMBean.class, "org.apache.cassandra.metrics:type=Decoders,name=BoxedDouble")
+                .register(new Gauge("7.5"), GaugeMBean.class, "org.apache.cassandra.metrics:type=Decoders,name=String")
+                .register(new Gauge(buckets), GaugeMBean.class, "org.apache.cassandra.metrics:type=Decoders,name=Histogram")
+                .register(new Gauge(Collections.singletonMap("ks", Collections.singletonMap("tbl", 8))), GaugeMBean.class, "org.apache.cassandra.metrics:type=Compaction,name=PendingTasksByTableName");
+        JmxScraper scraper = scraper();
+        scraper.run(node.server, false, Optional.empty());
+
+        Map<String, Double> values = values(scraper);
+        assertEquals(1.0, values.get("org:apache:cassandra:metrics:decoders:primitives:long"), 0);
+        assertEquals(2.0, values.get("org:apache:cassandra:metrics:decoders:primitives:int"), 0);
+        assertEquals(3.5, values.get("org:apache:cassandra:metrics:decoders:primitives:double"), 0);
+        assertEquals(1.0, values.get("org:apache:cassandra:metrics:decoders:primitives:boolean"), 0);
+        assertEquals(4.0, values.get("org:apache:cassandra:metrics:decoders:boxedlong:value"), 0);
+        assertEquals(5.0, values.get("org:apache:cassandra:metrics:decoders:boxedinteger:value"), 0);
+        assertEquals(6.5, values.get("org:apache:cassandra:metrics:decoders:boxeddouble:value"), 0);
+        assertEquals(7.5, values.get("org:apache:cassandra:metrics:decoders:string:value"), 0);
+        assertEquals(8.0, values.get("org:apache:cassandra:metrics:compaction:pendingtasksbytablename:ks:tbl:value"), 0);
+
+        EstimatedHistogram histogram = new EstimatedHistogram(EstimatedHistogram.newOffsets(buckets.length, false), buckets);
+        assertEquals(histogram.percentile(0.5), values.get("org:apache:cassandra:metrics:decoders:histogram:50thpercentile"), 0);
+        assertEquals(histogram.percentile(0.99), values.get("org:apache:cassandra:metrics:decoders:histogram:99thpercentile"), 0);
+        assertEquals(histogram.min(), values.get("org:apache:cassandra:metrics:decoders:histogram:min"), 0);
+        assertEquals(histogram.max(), values.get("org:apache:cassandra:metrics:decoders:histogram:max"), 0);
+    }
+
+    @Test
+    public void test_attributes_of_unknown_types_are_not_fetched_anymore() throws Exception {
+        Gauge unknown = new Gauge(UUID.randomUUID());
+        Gauge text = new Gauge("UP");
+        Gauge number = new Gauge("1");
+        FakeNode node = new FakeNode()
+                .register(unknown, GaugeMBean.class, "org.apache.cassandra.metrics:type=Decoders,name=Unknown")
+                .register(text, GaugeMBean.class, "org.apache.cassandra.metrics:type=Decoders,name=Text")
+                .register(number, GaugeMBean.class, "org.apache.cassandra.metrics:type=Decoders,name=Number");
+        JmxScraper scraper = scraper();
+        scraper.run(node.server, false, Optional.empty());
+        Thread.sleep(1000);
+        number.value = "2";
+        scraper.run(node.server, false, Optional.empty());
+
+        assertEquals(1, unknown.reads.get());
+        assertEquals(1, text.reads.get());
+        assertEquals(2, number.reads.get());
+        Map<String, Double> values = values(scraper);
+        assertEquals(2.0, values.get("org:apache:cassandra:metrics:decoders:number:value"), 0);
+        assertFalse(values.containsKey("org:apache:cassandra:metrics:decoders:unknown:value"));
+        assertFalse(values.containsKey("org:apache:cassandra:metrics:decoders:text:value"));
+    }
+
+    @Test
+    public void test_percentiles_of_timer_buckets_are_in_the_unit_of_the_timer() throws Exception {
+        Timer timer = new Timer();
+        timer.buckets[40] = 10;
+        timer.buckets[60] = 1;
+        FakeNode node = new FakeNode().register(timer, TimerMBean.class, "org.apache.cassandra.metrics:type=CountersOnly,name=Timer");
+        JmxScraper scraper = scraper(true, false);
+        scraper.run(node.server, false, Optional.empty());
+
+        // Cassandra records durations in nanoseconds, and converts the percentiles it exposes to the DurationUnit
+        EstimatedHistogram nanos = new EstimatedHistogram(EstimatedHistogram.newOffsets(timer.buckets.length, false), timer.buckets);
+        Map<String, Double> values = values(scraper);
+        assertEquals(nanos.percentile(0.5) / 1000.0, values.get("org:apache:cassandra:metrics:countersonly:timer:50thpercentile"), 1e-9);
+        assertEquals(nanos.percentile(0.99) / 1000.0, values.get("org:apache:cassandra:metrics:countersonly:timer:99thpercentile"), 1e-9);
+        assertEquals(nanos.max() / 1000.0, values.get("org:apache:cassandra:metrics:countersonly:timer:max"), 1e-9);
+        assertEquals(11.0, values.get("org:apache:cassandra:metrics:countersonly:timer:count"), 0);
+        assertFalse(values.containsKey("org:apache:cassandra:metrics:countersonly:timer:999thpercentile"));
+        assertFalse(values.containsKey("org:apache:cassandra:metrics:countersonly:timer:mean"));
+    }
+
+    @Test
+    public void test_rates_are_computed_from_the_growth_of_the_count() throws Exception {
+        Meter meter = new Meter();
+        FakeNode node = new FakeNode().register(meter, MeterMBean.class, "org.apache.cassandra.metrics:type=CountersOnly,name=Meter");
+        JmxScraper scraper = scraper(true, true);
+        String rate = "org:apache:cassandra:metrics:countersonly:meter:rate";
+
+        meter.count = 100;
+        long start = System.currentTimeMillis();
+        scraper.run(node.server, false, Optional.empty());
+        assertFalse(values(scraper).containsKey(rate));
+
+        Thread.sleep(1000);
+        meter.count = 300;
+        scraper.run(node.server, false, Optional.empty());
+        long elapsed = System.currentTimeMillis() - start;
+        double growing = values(scraper).get(rate);
+        assertTrue(growing + " per second", growing >= 200.0 * 1000 / elapsed && growing <= 200.0);
+        assertFalse(values(scraper).containsKey("org:apache:cassandra:metrics:countersonly:meter:oneminuterate"));
+
+        // Cassandra restarted, its count went back to 0
+        Thread.sleep(1000);
+        meter.count = 50;
+        scraper.run(node.server, false, Optional.empty());
+        assertFalse(values(scraper).containsKey(rate));
+        assertEquals(50.0, values(scraper).get("org:apache:cassandra:metrics:countersonly:meter:count"), 0);
+
+        Thread.sleep(1000);
+        meter.count = 150;
+        scraper.run(node.server, false, Optional.empty());
+        assertTrue(values(scraper).get(rate) > 0);
+    }
+
+    @Test
+    public void test_reloaded_rules_retier_and_evict_the_scraped_series() throws Exception {
+        FakeNode node = new FakeNode()
+                .register(new Gauge(1), GaugeMBean.class, "org.apache.cassandra.metrics:type=Reload,name=Kept")
+                .register(new Gauge(2), GaugeMBean.class, "org.apache.cassandra.metrics:type=Reload,name=Slower")
+                .register(new Gauge(3), GaugeMBean.class, "org.apache.cassandra.metrics:type=Reload,name=Blacklisted");
+        JmxScraper scraper = scraper();
+        scraper.run(node.server, false, Optional.empty());
+        assertEquals(3, values(scraper, 1000).size());
+
+        assertTrue(scraper.reload(config("blacklist:\n  - .*:blacklisted:.*\nmaxScrapFrequencyInSec:\n  1:\n    - .*\n  50:\n    - .*:slower:.*\n")));
+        Thread.sleep(1000);
+        scraper.run(node.server, false, Optional.empty());
+
+        assertEquals(Collections.singletonMap("org:apache:cassandra:metrics:reload:kept:value", 1.0), values(scraper, 1000));
+        assertEquals(Collections.singletonMap("org:apache:cassandra:metrics:reload:slower:value", 2.0), values(scraper, 50000));
+        assertFalse(values(scraper).containsKey("org:apache:cassandra:metrics:reload:blacklisted:value"));
+    }
+
+    @Test
+    public void test_blacklisted_sources_are_withdrawn_from_their_rollup_on_reload() throws Exception {
+        FakeNode node = new FakeNode("ks.a", "ks.b")
+                .register(new Gauge(1), GaugeMBean.class, "org.apache.cassandra.metrics:type=Table,keyspace=ks,scope=a,name=ReloadRollup")
+                .register(new Gauge(2), GaugeMBean.class, "org.apache.cassandra.metrics:type=Table,keyspace=ks,scope=b,name=ReloadRollup");
+        String rollup = "org:apache:cassandra:metrics:table:ks:reloadrollup:value";
+        JmxScraper scraper = scraper("maxScrapFrequencyInSec: {1: ['.*:reloadrollup:.*']}\naggregations: [{metrics: '.*:reloadrollup:value'}]");
+        scraper.run(node.server, false, Optional.empty());
+        assertEquals(3.0, values(scraper).get(rollup), 0);
+
+        assertTrue(scraper.reload(config("blacklist: ['.*:ks:b:reloadrollup:.*']\nmaxScrapFrequencyInSec: {1: ['.*:reloadrollup:.*']}")));
+        Thread.sleep(1000);
+        scraper.run(node.server, false, Optional.empty());
+        assertEquals(1.0, values(scraper).get(rollup), 0);
+        assertFalse(values(scraper).containsKey("org:apache:cassandra:metrics:table:ks:b:reloadrollup:value"));
+
+        // Without any source left, the rollup is not exported anymore
+        assertTrue(scraper.reload(config("blacklist: ['.*:ks:.:reloadrollup:.*']\nmaxScrapFrequencyInSec: {1: ['.*:reloadrollup:.*']}")));
+        Thread.sleep(1000);
+        scraper.run(node.server, false, Optional.empty());
+        assertEquals(Collections.emptyMap(), values(scraper));
+    }
+
+    @Test
+    public void test_invalid_rules_are_not_reloaded() throws Exception {
+        FakeNode node = new FakeNode()
+                .register(new Gauge(1), GaugeMBean.class, "org.apache.cassandra.metrics:type=InvalidReload,name=Kept");
+        JmxScraper scraper = scraper();
+        scraper.run(node.server, false, Optional.empty());
+
+        assertFalse(scraper.reload(config("blacklist:\n  - \"[\"\nmaxScrapFrequencyInSec:\n  50:\n    - .*\n")));
+        assertFalse(scraper.reload(config("maxScrapFrequencyInSec: {}\n")));
+        Thread.sleep(1000);
+        scraper.run(node.server, false, Optional.empty());
+
+        assertEquals(Collections.singletonMap("org:apache:cassandra:metrics:invalidreload:kept:value", 1.0), values(scraper, 1000));
+    }
+
+    @Test
+    public void test_node_metrics_are_served_before_the_tables_are_scraped() throws Exception {
+        CountDownLatch tableRead = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        GaugeMBean blocking = () -> {
+            tableRead.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return 2;
+        };
+        FakeNode node = new FakeNode("ks.tbl")
+                .register(new Gauge(1), GaugeMBean.class, "org.apache.cassandra.metrics:type=Startup,name=Node")
+                .register(blocking, GaugeMBean.class, "org.apache.cassandra.metrics:type=StartupTable,keyspace=ks,scope=tbl,name=Blocking")
+                .register(new Gauge(3), GaugeMBean.class, "org.apache.cassandra.metrics:type=StartupTable,keyspace=ks,scope=tbl,name=Other");
+        JmxScraper scraper = scraper();
+        Config cfg = new ObjectMapper().readValue("{\"listenAddress\": \"127.0.0.1\", \"listenPort\": 0}", Config.class);
+        ExpositionServer server = ExpositionServer.start(cfg, scraper.series(), Optional.empty(), scraper.startup()::isReady, new CollectorRegistry(), true);
+        Thread scraping = new Thread(() -> {
+            try {
+                scraper.run(node.server, false, Optional.empty());
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        try {
+            long generation = scraper.series().generation();
+            scraping.start();
+            assertTrue(tableRead.await(10, TimeUnit.SECONDS));
+
+            assertTrue(scraper.series().generation() > generation);
+            assertEquals(1.0, values(scraper).get("org:apache:cassandra:metrics:startup:node:value"), 0);
+            assertFalse(values(scraper).containsKey("org:apache:cassandra:metrics:startuptable:ks:tbl:blocking:value"));
+            assertEquals(503, status(server, ExpositionServer.READY_PATH));
+
+            release.countDown();
+            scraping.join(10000);
+            assertEquals(2.0, values(scraper).get("org:apache:cassandra:metrics:startuptable:ks:tbl:blocking:value"), 0);
+            assertEquals(3.0, values(scraper).get("org:apache:cassandra:metrics:startuptable:ks:tbl:other:value"), 0);
+            assertEquals(200, status(server, ExpositionServer.READY_PATH));
+        } finally {
+            release.countDown();
+            server.stop();
+            scraper.close();
+        }
+    }
+
+    @Test
+    public void test_structured_cluster_rollups_are_labeled_apart_from_the_global_metrics() throws Exception {
+        FakeNode node = new FakeNode("ks.tbl", "ks2.tbl2");
+        for (String name : new String[]{"keyspace=ks,scope=tbl,", "keyspace=ks2,scope=tbl2,", ""}) {
+            Meter meter = new Meter();
+            meter.count = 10;
+            node.register(meter, MeterMBean.class, "org.apache.cassandra.metrics:type=Table," + name + "name=StructuredRollup");
+        }
+        JmxScraper scraper = scraper("maxScrapFrequencyInSec: {1: ['.*']}\nstructuredLabels: true\naggregations: [{metrics: '.*:structuredrollup:count', by: cluster}]");
+        scraper.run(node.server, false, Optional.empty());
+
+        Set<List<String>> seen = new HashSet<>();
+        List<Collector.MetricFamilySamples.Sample> rollups = new ArrayList<>();
+        for (Collector.MetricFamilySamples family : scraper.series().select(Optional.empty(), Optional.empty(), Optional.empty())) {
+            for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+                List<String> labels = new ArrayList<>(sample.labelNames);
+                labels.add(sample.name);
+                labels.addAll(sample.labelValues);
+                assertTrue("Duplicated series " + labels, seen.add(labels));
+                if (sample.labelValues.contains(Aggregator.ALL_KEYSPACES)) rollups.add(sample);
+            }
+        }
+        assertEquals(1, rollups.size());
+        assertEquals("cassandra_table_structuredrollup", rollups.get(0).name);
+        assertEquals(20.0, rollups.get(0).value, 0);
+    }
+
+    @Test
+    public void test_series_of_the_folded_tables_are_removed() throws Exception {
+        FakeNode node = new FakeNode("ks.t0", "ks.t1", "ks.t2");
+        Meter[] meters = new Meter[3];
+        for (int i = 0; i < meters.length; i++) {
+            meters[i] = new Meter();
+            meters[i].count = i * 10;
+            node.register(meters[i], MeterMBean.class, "org.apache.cassandra.metrics:type=Table,keyspace=ks,scope=t" + i + ",name=BudgetWrite");
+        }
+        JmxScraper scraper = scraper("maxScrapFrequencyInSec: {1: ['.*:budgetwrite:count']}\nseriesBudgets: [{metrics: '.*:budgetwrite:count', maxSeries: 2, rankBy: '.*:budgetwrite:count'}]");
+
+        scraper.run(node.server, false, Optional.empty());
+        assertEquals(Collections.singleton("org:apache:cassandra:metrics:table:ks:t2:budgetwrite:count"), values(scraper).keySet());
+
+        // The series of the folded tables go to the other table, as long as they stay the least active
+        meters[1].count += 10;
+        meters[2].count += 20;
+        Thread.sleep(1000);
+        scraper.run(node.server, false, Optional.empty());
+
+        Map<String, Double> values = values(scraper);
+        assertEquals(40.0, values.get("org:apache:cassandra:metrics:table:ks:t2:budgetwrite:count"), 0);
+        assertFalse(values.containsKey("org:apache:cassandra:metrics:table:ks:t1:budgetwrite:count"));
+        assertFalse(values.containsKey("org:apache:cassandra:metrics:table:ks:t0:budgetwrite:count"));
+        assertEquals(20.0, values.get("org:apache:cassandra:metrics:table:other:other:budgetwrite:count"), 0);
+    }
+
+    @Test
+    public void test_restored_values_are_served_until_the_first_cycle_replaces_them() throws Exception {
+        String kept = "org:apache:cassandra:metrics:restorekept:value";
+        String vanished = "org:apache:cassandra:metrics:restorevanished:value";
+        FakeNode node = new FakeNode()
+                .register(new Gauge(1), GaugeMBean.class, "org.apache.cassandra.metrics:type=RestoreKept")
+                .register(new Gauge(2), GaugeMBean.class, "org.apache.cassandra.metrics:type=RestoreVanished");
+        String yaml = "maxScrapFrequencyInSec: {1: ['.*:restore.*']}\nsnapshotPath: " + folder.getRoot().toPath().resolve("snapshot.bin");
+        JmxScraper previous = scraper(yaml);
+        previous.run(node.server, false, Optional.empty());
+        previous.close();
+
+        // Served as soon as the exporter restarts, before it reaches the node
+        JmxScraper scraper = scraper(yaml);
+        assertEquals(1.0, values(scraper).get(kept), 0);
+        assertEquals(2.0, values(scraper).get(vanished), 0);
+
+        node.unregister("org.apache.cassandra.metrics:type=RestoreVanished");
+        scraper.run(node.server, false, Optional.empty());
+        assertEquals(1.0, values(scraper).get(kept), 0);
+        assertFalse(values(scraper).containsKey(vanished));
+    }
+
+    @Test
+    public void test_snapshot_is_only_saved_again_once_discovery_changed_or_after_its_interval() throws Exception {
+        FakeNode node = new FakeNode().register(new Gauge(1), GaugeMBean.class, "org.apache.cassandra.metrics:type=SnapshotInterval");
+        Path snapshot = folder.getRoot().toPath().resolve("snapshot.bin");
+        JmxScraper scraper = scraper("maxScrapFrequencyInSec: {1: ['.*:snapshotinterval.*']}\nsnapshotIntervalInSec: 3600\nsnapshotPath: " + snapshot);
+        scraper.run(node.server, false, Optional.empty());
+        long savedAt = DiscoverySnapshot.load(snapshot).get().savedAt;
+
+        Thread.sleep(1000);
+        scraper.run(node.server, false, Optional.empty());
+        assertEquals(savedAt, DiscoverySnapshot.load(snapshot).get().savedAt);
+
+        node.register(new Gauge(2), GaugeMBean.class, "org.apache.cassandra.metrics:type=SnapshotIntervalNew");
+        Thread.sleep(1000);
+        scraper.run(node.server, false, Optional.empty());
+        DiscoverySnapshot saved = DiscoverySnapshot.load(snapshot).get();
+        assertTrue(saved.savedAt > savedAt);
+        assertTrue(saved.plan.containsKey(ObjectName.getInstance("org.apache.cassandra.metrics:type=SnapshotIntervalNew")));
+    }
+
+    /**
+     * Scraper of every metric every second
+     */
+    private static JmxScraper scraper() throws IOException {
+        return scraper(false, false);
+    }
+
+    private static JmxScraper scraper(boolean countersOnly, boolean computeRates) throws IOException {
+        return scraper("maxScrapFrequencyInSec: {1: ['.*']}\ncountersOnly: " + countersOnly + "\ncomputeRates: " + computeRates);
+    }
+
+    /**
+     * Scraper of the given yaml config
+     */
+    static JmxScraper scraper(String yaml) throws IOException {
+        return new JmxScraper("", parse(yaml), Collections.emptyMap());
+    }
+
+    static Config parse(String yaml) throws IOException {
+        return new ObjectMapper(new YAMLFactory()).readValue(yaml, Config.class);
+    }
+
+    /**
+     * @return the value of the exported series by metric name
+     */
+    private static Map<String, Double> values(JmxScraper scraper) {
+        return values(scraper, Optional.empty());
+    }
+
+    /**
+     * @return the value of the exported series of a scrap frequency in ms by metric name
+     */
+    private static Map<String, Double> values(JmxScraper scraper, int tier) {
+        return values(scraper, Optional.of(tier));
+    }
+
+    private static Map<String, Double> values(JmxScraper scraper, Optional<Integer> tier) {
+        Map<String, Double> values = new HashMap<>();
+        for (Collector.MetricFamilySamples family : scraper.series().select(tier, Optional.empty(), Optional.empty())) {
+            for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+                values.put(sample.labelValues.get(4), sample.value);
+            }
+        }
+        return values;
+    }
+
+    private static int status(ExpositionServer server, String path) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + server.port() + path).openConnection();
+        try {
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private Config config(String content) throws Exception {
+        Path path = folder.newFile().toPath();
+        Files.write(path, content.getBytes());
+        return Config.fromFile(path.toString()).get();
+    }
+
+    private static MBeanAttributeInfo[] attributes(String... namesAndTypes) {
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[namesAndTypes.length / 2];
+        for (int i = 0; i < attributes.length; i++) {
+            attributes[i] = new MBeanAttributeInfo(namesAndTypes[2 * i], namesAndTypes[2 * i + 1], "", true, false, false);
+        }
+        return attributes;
+    }
+
+    private static String[] names(MBeanAttributeInfo[] attributes) {
+        return Arrays.stream(attributes).map(MBeanAttributeInfo::getName).toArray(String[]::new);
+    }
+
+    public static final class Gauge implements GaugeMBean {
+        final AtomicInteger reads = new AtomicInteger();
+        volatile Object value;
+
+        Gauge(Object value) {
+            this.value = value;
+        }
+
+        public Object getValue() {
+            reads.incrementAndGet();
+            return value;
+        }
+    }
+
+    public static class Meter implements MeterMBean {
+        volatile long count;
+
+        public long getCount() { return count; }
+        public double getMeanRate() { return 1; }
+        public double getOneMinuteRate() { return 1; }
+        public double getFiveMinuteRate() { return 1; }
+        public double getFifteenMinuteRate() { return 1; }
+        public String getRateUnit() { return "events/second"; }
+    }
+
+    public static final class Timer extends Meter implements TimerMBean {
+        final long[] buckets = new long[90];
+
+        public long getCount() { return Arrays.stream(buckets).sum(); }
+        public double get50thPercentile() { return 1; }
+        public double get999thPercentile() { return 1; }
+        public double getMean() { return 1; }
+        public double getMax() { return 1; }
+        public long[] getRecentValues() { return buckets; }
+        public String getDurationUnit() { return "microseconds"; }
+    }
 }
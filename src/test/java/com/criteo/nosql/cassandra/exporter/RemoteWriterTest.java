@@ -0,0 +1,195 @@
+package com.criteo.nosql.cassandra.exporter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xerial.snappy.Snappy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RemoteWriterTest {
+
+    private static final String READS = "org:apache:cassandra:metrics:table:ks:tbl:readlatency:count";
+    private static final String WRITES = "org:apache:cassandra:metrics:table:ks:tbl:writelatency:count";
+    private static final String TIMEOUTS = "org:apache:cassandra:metrics:clientrequest:read:timeouts:count";
+
+    // Stub receiver, failing the first requests with a 503 to exercise the retries
+    private HttpServer receiver;
+    private final AtomicInteger failures = new AtomicInteger();
+    private final BlockingQueue<List<Map<String, String>>> requests = new LinkedBlockingQueue<>();
+
+    @Before
+    public void startReceiver() throws Exception {
+        receiver = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        receiver.createContext("/api/v1/write", exchange -> {
+            byte[] body = readAll(exchange.getRequestBody());
+            if (failures.getAndDecrement() > 0) {
+                exchange.sendResponseHeaders(503, -1);
+            } else {
+                requests.add(decode(Snappy.uncompress(body)));
+                exchange.sendResponseHeaders(204, -1);
+            }
+            exchange.close();
+        });
+        receiver.start();
+    }
+
+    @After
+    public void stopReceiver() {
+        receiver.stop(0);
+    }
+
+    @Test
+    public void test_only_changed_series_of_the_tier_are_pushed() throws Exception {
+        SeriesIndex index = newIndex();
+        RemoteWriter writer = new RemoteWriter(config(1, 100), index);
+
+        index.set(labels(READS), 1.0);
+        index.set(labels(WRITES), 2.0);
+        index.set(labels(TIMEOUTS), 3.0);
+        writer.tierScraped(60000, 1000L);
+        writer.start();
+
+        List<Map<String, String>> series = requests.poll(10, TimeUnit.SECONDS);
+        assertEquals(2, series.size());
+        Map<String, String> reads = series.stream().filter(s -> READS.equals(s.get("name"))).findFirst().get();
+        assertEquals("cassandra_stats", reads.get("__name__"));
+        assertEquals("ks", reads.get("keyspace"));
+        assertEquals("1.0", reads.get("value"));
+        assertEquals("1000", reads.get("timestamp"));
+        assertEquals(Arrays.asList("__name__", "cluster", "datacenter", "keyspace", "name", "table", "value", "timestamp"), new ArrayList<>(reads.keySet()));
+
+        index.set(labels(READS), 1.0);
+        index.set(labels(WRITES), 4.0);
+        writer.tierScraped(60000, 2000L);
+
+        series = requests.poll(10, TimeUnit.SECONDS);
+        assertEquals(1, series.size());
+        assertEquals(WRITES, series.get(0).get("name"));
+        assertEquals("4.0", series.get(0).get("value"));
+    }
+
+    @Test
+    public void test_oldest_samples_are_dropped_and_failed_requests_retried() throws Exception {
+        SeriesIndex index = newIndex();
+        RemoteWriter writer = new RemoteWriter(config(1, 2), index);
+        failures.set(2);
+
+        index.set(labels(READS), 1.0);
+        index.set(labels(WRITES), 2.0);
+        writer.tierScraped(60000, 1000L);
+        index.set(labels(READS), 5.0);
+        writer.tierScraped(60000, 2000L);
+        writer.start();
+
+        List<Map<String, String>> series = requests.poll(10, TimeUnit.SECONDS);
+        assertEquals(2, series.size());
+        assertEquals("5.0", series.get(1).get("value"));
+        assertEquals("2000", series.get(1).get("timestamp"));
+        assertEquals(-1, failures.get());
+        assertNull(requests.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    private Config.RemoteWrite config(int maxInFlight, int queueCapacity) throws Exception {
+        return new ObjectMapper().readValue(String.format("{\"url\": \"http://127.0.0.1:%d/api/v1/write\", \"maxInFlight\": %d, \"queueCapacity\": %d, \"minBackoffInMs\": 10}",
+                receiver.getAddress().getPort(), maxInFlight, queueCapacity), Config.RemoteWrite.class);
+    }
+
+    private static SeriesIndex newIndex() {
+        Gauge gauge = Gauge.build().name("cassandra_stats").help("test").labelNames("cluster", "datacenter", "keyspace", "table", "name").register(new CollectorRegistry());
+        return new SeriesIndex(gauge, Arrays.asList("cluster", "datacenter", "keyspace", "table", "name"), name -> name.contains("clientrequest") ? 10000 : 60000);
+    }
+
+    @Test
+    public void test_labels_with_an_empty_value_are_not_encoded() {
+        List<String> labelNames = Arrays.asList("cluster", "datacenter", "keyspace", "table", "mbean");
+        Collector.MetricFamilySamples.Sample sample = new Collector.MetricFamilySamples.Sample("cassandra_stats", labelNames, Arrays.asList("cluster", "dc", "", "", TIMEOUTS), 1, 1000L);
+
+        List<Map<String, String>> series = decode(RemoteWriter.encode(Collections.singletonList(sample)));
+        assertEquals(1, series.size());
+        assertEquals(Arrays.asList("__name__", "cluster", "datacenter", "mbean", "value", "timestamp"), new ArrayList<>(series.get(0).keySet()));
+        assertEquals(TIMEOUTS, series.get(0).get("mbean"));
+    }
+
+    private static String[] labels(String name) {
+        return name.contains(":table:") ? new String[]{"cluster", "dc", "ks", "tbl", name} : new String[]{"cluster", "dc", "", "", name};
+    }
+
+    private static byte[] readAll(InputStream in) throws java.io.IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int read; (read = in.read(buffer)) != -1; ) out.write(buffer, 0, read);
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode a WriteRequest into one map per TimeSeries, holding its labels in order then its value and timestamp
+     */
+    private static List<Map<String, String>> decode(byte[] request) {
+        List<Map<String, String>> series = new ArrayList<>();
+        ByteBuffer in = ByteBuffer.wrap(request).order(ByteOrder.LITTLE_ENDIAN);
+        while (in.hasRemaining()) {
+            assertEquals(0x0A, readVarint(in));
+            ByteBuffer timeSeries = slice(in);
+            Map<String, String> fields = new LinkedHashMap<>();
+            while (timeSeries.hasRemaining()) {
+                long tag = readVarint(timeSeries);
+                ByteBuffer message = slice(timeSeries);
+                if (tag == 0x0A) {
+                    assertEquals(0x0A, readVarint(message));
+                    String name = readString(message);
+                    assertEquals(0x12, readVarint(message));
+                    fields.put(name, readString(message));
+                } else {
+                    assertEquals(0x12, tag);
+                    assertEquals(0x09, readVarint(message));
+                    fields.put("value", String.valueOf(message.getDouble()));
+                    assertEquals(0x10, readVarint(message));
+                    fields.put("timestamp", String.valueOf(readVarint(message)));
+                }
+            }
+            series.add(fields);
+        }
+        return series;
+    }
+
+    private static ByteBuffer slice(ByteBuffer in) {
+        int length = (int) readVarint(in);
+        ByteBuffer message = in.slice().order(ByteOrder.LITTLE_ENDIAN);
+        message.limit(length);
+        in.position(in.position() + length);
+        return message;
+    }
+
+    private static String readString(ByteBuffer in) {
+        ByteBuffer bytes = slice(in);
+        return StandardCharsets.UTF_8.decode(bytes).toString();
+    }
+
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+    }
+}
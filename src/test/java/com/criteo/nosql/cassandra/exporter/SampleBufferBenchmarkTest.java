@@ -0,0 +1,101 @@
+package com.criteo.nosql.cassandra.exporter;
+
+import io.prometheus.client.Gauge;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Memory used by the sample buffer per series, for an hour of samples scraped every 50s: as estimated by the buffer,
+ * and as measured on the heap. A third of the series are constant, a third are counters and a third are latencies.
+ * Run it with gradle test -Dbenchmark=true
+ */
+public class SampleBufferBenchmarkTest {
+    private static final int SERIES = Integer.getInteger("benchmark.series", 100_000);
+    private static final int FREQUENCY_MS = 50_000;
+    private static final int SAMPLES = 3600_000 / FREQUENCY_MS;
+
+    private static final List<String> LABEL_NAMES = Arrays.asList("cluster", "datacenter", "keyspace", "table", "name");
+
+    private SeriesIndex index;
+    private String[][] labels;
+
+    @Before
+    public void setUp() {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+
+        Gauge gauge = Gauge.build().name("cassandra_stats").help("node stats").labelNames(LABEL_NAMES.toArray(new String[0])).create();
+        index = new SeriesIndex(gauge, LABEL_NAMES, name -> FREQUENCY_MS);
+        labels = new String[SERIES][];
+        for (int i = 0; i < SERIES; i++) {
+            labels[i] = new String[]{"cluster", "dc", "ks", "tbl" + i / 25, "org:apache:cassandra:metrics:table:ks:tbl" + i / 25 + ":metric" + i % 25 + ":count"};
+            index.set(labels[i], 0);
+        }
+    }
+
+    @Test
+    public void benchmark_memory_per_series() throws IOException {
+        Random random = new Random(42);
+        double[] counters = new double[SERIES];
+        long heapBefore = usedHeap();
+        SampleBuffer buffer = new SampleBuffer(index, 3600_000, Long.MAX_VALUE);
+
+        long timestamp = 1_600_000_000_000L;
+        long recordNanos = 0;
+        for (int sample = 0; sample < SAMPLES; sample++) {
+            for (int i = 0; i < SERIES; i++) {
+                switch (i % 3) {
+                    case 0:
+                        break;
+                    case 1:
+                        counters[i] += random.nextInt(1000);
+                        index.set(labels[i], counters[i]);
+                        break;
+                    default:
+                        index.set(labels[i], 100 + random.nextGaussian() * 20);
+                }
+            }
+            // The scrap cycles start a few ms late
+            timestamp += FREQUENCY_MS + random.nextInt(30);
+            long start = System.nanoTime();
+            buffer.tierScraped(FREQUENCY_MS, timestamp);
+            recordNanos += System.nanoTime() - start;
+        }
+        long heapAfter = usedHeap();
+
+        CountingStream out = new CountingStream();
+        long start = System.nanoTime();
+        long written = buffer.write(out, Optional.empty(), Optional.empty());
+        long writeNanos = System.nanoTime() - start;
+
+        System.out.printf("%d series, %d samples each: %.1f bytes per series estimated, %.1f bytes per series measured on the heap, %.2f bytes per sample, 16 bytes per sample uncompressed%n",
+                SERIES, SAMPLES, buffer.bytes() / (double) SERIES, (heapAfter - heapBefore) / (double) SERIES, buffer.bytes() / (double) SERIES / SAMPLES);
+        System.out.printf("Buffering a cycle took %.1fms, writing the %d samples took %dms for %dMB%n",
+                recordNanos / 1e6 / SAMPLES, written, writeNanos / 1_000_000, out.count >> 20);
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static final class CountingStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
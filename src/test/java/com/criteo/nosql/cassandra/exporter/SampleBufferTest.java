@@ -0,0 +1,194 @@
+package com.criteo.nosql.cassandra.exporter;
+
+import io.prometheus.client.Gauge;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SampleBufferTest {
+
+    private static final List<String> LABEL_NAMES = Arrays.asList("cluster", "datacenter", "keyspace", "table", "name");
+    private static final int TIER = 60000;
+    private static final String[] READ = {"c", "dc", "ks", "tbl", "org:apache:cassandra:metrics:table:ks:tbl:readlatency:count"};
+    private static final String[] WRITE = {"c", "dc", "ks", "tbl", "org:apache:cassandra:metrics:table:ks:tbl:writelatency:count"};
+    private static final int SLOW_TIER = 600000;
+    private static final String[] SLOW = {"c", "dc", "ks", "tbl", "org:apache:cassandra:metrics:table:ks:tbl:pendingcompactions:value"};
+
+    private final SeriesIndex index = new SeriesIndex(Gauge.build().name("cassandra_stats").help("node stats").labelNames(LABEL_NAMES.toArray(new String[0])).create(), LABEL_NAMES, name -> TIER);
+
+    @Test
+    public void test_samples_are_written_with_their_timestamp_in_the_openmetrics_format() throws IOException {
+        SampleBuffer buffer = new SampleBuffer(index, 3600_000, 1 << 20);
+        index.set(READ, 1);
+        buffer.tierScraped(TIER, 1_000_000_000_005L);
+        index.set(READ, 2.5);
+        buffer.tierScraped(TIER, 1_000_000_060_010L);
+
+        assertEquals("# TYPE cassandra_stats gauge\n" +
+                "# HELP cassandra_stats node stats\n" +
+                "cassandra_stats{cluster=\"c\",datacenter=\"dc\",keyspace=\"ks\",table=\"tbl\",name=\"org:apache:cassandra:metrics:table:ks:tbl:readlatency:count\"} 1.0 1000000000.005\n" +
+                "cassandra_stats{cluster=\"c\",datacenter=\"dc\",keyspace=\"ks\",table=\"tbl\",name=\"org:apache:cassandra:metrics:table:ks:tbl:readlatency:count\"} 2.5 1000000060.010\n" +
+                "# EOF\n", write(buffer, Optional.empty()));
+    }
+
+    @Test
+    public void test_samples_are_decoded_as_they_were_recorded() throws IOException {
+        SampleBuffer buffer = new SampleBuffer(index, Long.MAX_VALUE / 2, 1 << 20);
+        Random random = new Random(42);
+        long[] timestamps = new long[500];
+        double[] values = new double[timestamps.length];
+        long timestamp = 1_600_000_000_000L;
+        double counter = 0;
+        for (int i = 0; i < timestamps.length; i++) {
+            // Steady pace with a few ms of jitter, then gaps and clock steps hitting every delta of delta size
+            timestamp += i % 50 == 49 ? random.nextInt(100_000_000) : i % 10 == 9 ? 60_000 + random.nextInt(600_000) : 60_000 + random.nextInt(20);
+            if (i % 7 != 0) counter += random.nextInt(1000);
+            timestamps[i] = timestamp;
+            values[i] = i % 97 == 0 ? Double.NaN : i % 89 == 0 ? Double.POSITIVE_INFINITY : i % 83 == 0 ? -0.0 : i % 3 == 0 ? counter : i % 3 == 1 ? random.nextGaussian() * 1e6 : Math.round(counter / 1000);
+            index.set(READ, values[i]);
+            buffer.tierScraped(TIER, timestamps[i]);
+        }
+
+        List<long[]> samples = parse(write(buffer, Optional.empty())).get(READ[4]);
+        assertEquals(timestamps.length, samples.size());
+        for (int i = 0; i < timestamps.length; i++) {
+            assertEquals(timestamps[i], samples.get(i)[0]);
+            assertEquals("sample " + i, Double.doubleToLongBits(values[i]), samples.get(i)[1]);
+        }
+    }
+
+    @Test
+    public void test_expired_samples_and_series_are_dropped() throws IOException {
+        SampleBuffer buffer = new SampleBuffer(index, 3600_000, 1 << 20);
+        long start = 1_600_000_000_000L;
+        for (int i = 0; i < 200; i++) {
+            index.set(READ, i);
+            if (i <= 100) index.set(WRITE, i);
+            if (i == 100) index.remove(WRITE);
+            buffer.tierScraped(TIER, start + i * 60_000L);
+        }
+
+        Map<String, List<long[]>> series = parse(write(buffer, Optional.empty()));
+        assertEquals(Collections.singleton(READ[4]), series.keySet());
+        // Dropped by chunks, that are all full of samples of the retention but the oldest one
+        long oldest = series.get(READ[4]).get(0)[0];
+        assertTrue(oldest > start + 199 * 60_000L - 3600_000 - 60 * 60_000L && oldest <= start + 199 * 60_000L - 3600_000);
+        assertEquals(start + 199 * 60_000L, series.get(READ[4]).get(series.get(READ[4]).size() - 1)[0]);
+    }
+
+    @Test
+    public void test_chunks_of_slower_tiers_expire_with_the_retention() throws IOException {
+        SeriesIndex tiered = tieredIndex();
+        SampleBuffer buffer = new SampleBuffer(tiered, 3600_000, 1 << 20);
+        long start = 1_600_000_000_000L;
+        // The slow series fills its first chunk in 10 hours, after the fast one filled 9 of them
+        long now = start;
+        for (long t = 0; t <= 39060_000L; t += TIER) {
+            now = start + t;
+            tiered.set(READ, t);
+            buffer.tierScraped(TIER, now);
+            if (t % SLOW_TIER == 0) {
+                tiered.set(SLOW, t);
+                buffer.tierScraped(SLOW_TIER, now);
+            }
+        }
+
+        Map<String, List<long[]>> series = parse(write(buffer, Optional.empty()));
+        assertTrue(series.get(SLOW[4]).get(0)[0] >= now - 3600_000);
+        assertTrue(series.get(READ[4]).get(0)[0] > now - 3600_000 - 60 * TIER);
+    }
+
+    @Test
+    public void test_samples_of_series_not_scraped_anymore_are_released() throws IOException {
+        SeriesIndex tiered = tieredIndex();
+        SeriesIndex fastOnly = tieredIndex();
+        SampleBuffer buffer = new SampleBuffer(tiered, 3600_000, 1 << 20);
+        SampleBuffer reference = new SampleBuffer(fastOnly, 3600_000, 1 << 20);
+        long start = 1_600_000_000_000L;
+        for (long t = 0; t <= 200_000_000L; t += TIER) {
+            tiered.set(READ, t);
+            fastOnly.set(READ, t);
+            buffer.tierScraped(TIER, start + t);
+            reference.tierScraped(TIER, start + t);
+            if (t % SLOW_TIER == 0) {
+                // The slow series fills a few chunks, then is not scraped anymore
+                if (t < 130 * SLOW_TIER) tiered.set(SLOW, t);
+                if (t == 130 * SLOW_TIER) tiered.remove(SLOW);
+                buffer.tierScraped(SLOW_TIER, start + t);
+            }
+        }
+
+        assertEquals(Collections.singleton(READ[4]), parse(write(buffer, Optional.empty())).keySet());
+        assertEquals(reference.bytes(), buffer.bytes());
+    }
+
+    @Test
+    public void test_oldest_samples_are_dropped_when_over_the_memory_cap() throws IOException {
+        SampleBuffer buffer = new SampleBuffer(index, Long.MAX_VALUE / 2, 256 * 1024);
+        Random random = new Random(42);
+        for (int i = 0; i < 100; i++) {
+            index.set(new String[]{"c", "dc", "ks", "tbl" + i, "org:apache:cassandra:metrics:table:ks:tbl" + i + ":readlatency:count"}, 0);
+        }
+        long start = 1_600_000_000_000L;
+        for (int cycle = 0; cycle < 300; cycle++) {
+            for (int i = 0; i < 100; i++) {
+                index.set(new String[]{"c", "dc", "ks", "tbl" + i, "org:apache:cassandra:metrics:table:ks:tbl" + i + ":readlatency:count"}, random.nextDouble());
+            }
+            buffer.tierScraped(TIER, start + cycle * 60_000L);
+            assertTrue(buffer.bytes() <= 256 * 1024);
+        }
+
+        Map<String, List<long[]>> series = parse(write(buffer, Optional.of("ks")));
+        assertEquals(100, series.size());
+        int evicted = 0;
+        for (List<long[]> samples : series.values()) {
+            assertEquals(start + 299 * 60_000L, samples.get(samples.size() - 1)[0]);
+            // Dropped by whole chunks of 60 samples
+            long dropped = (samples.get(0)[0] - start) / 60_000L;
+            assertEquals(0, dropped % 60);
+            if (dropped > 0) evicted++;
+        }
+        assertTrue(evicted > 0);
+    }
+
+    /**
+     * Index of the read latency in the TIER, and of the pending compactions in the SLOW_TIER
+     */
+    private static SeriesIndex tieredIndex() {
+        return new SeriesIndex(Gauge.build().name("cassandra_stats").help("node stats").labelNames(LABEL_NAMES.toArray(new String[0])).create(), LABEL_NAMES,
+                name -> name.equals(SLOW[4]) ? SLOW_TIER : TIER);
+    }
+
+    private static String write(SampleBuffer buffer, Optional<String> keyspace) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        buffer.write(out, Optional.empty(), keyspace);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the timestamp and the bits of the value of the samples, by series name
+     */
+    private static Map<String, List<long[]>> parse(String page) {
+        String[] lines = page.split("\n");
+        assertEquals("# EOF", lines[lines.length - 1]);
+        Map<String, List<long[]>> series = new HashMap<>();
+        for (String line : lines) {
+            if (line.startsWith("#")) continue;
+            String name = line.substring(line.indexOf(",name=\"") + 7, line.indexOf("\"}"));
+            String[] valueAndTimestamp = line.substring(line.indexOf("} ") + 2).split(" ");
+            double value = valueAndTimestamp[0].equals("+Inf") ? Double.POSITIVE_INFINITY
+                    : valueAndTimestamp[0].equals("-Inf") ? Double.NEGATIVE_INFINITY
+                    : Double.parseDouble(valueAndTimestamp[0]);
+            long timestamp = new BigDecimal(valueAndTimestamp[1]).movePointRight(3).longValueExact();
+            series.computeIfAbsent(name, key -> new ArrayList<>()).add(new long[]{timestamp, Double.doubleToLongBits(value)});
+        }
+        return series;
+    }
+}
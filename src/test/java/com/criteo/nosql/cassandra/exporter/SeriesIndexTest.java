@@ -0,0 +1,203 @@
+package com.criteo.nosql.cassandra.exporter;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.ToIntFunction;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class SeriesIndexTest {
+
+    private static final String READS = "org:apache:cassandra:metrics:table:ks:tbl:readlatency:count";
+    private static final String WRITES = "org:apache:cassandra:metrics:table:ks2:tbl:writelatency:count";
+    private static final String TIMEOUTS = "org:apache:cassandra:metrics:clientrequest:read:timeouts:count";
+
+    @Test
+    public void test_select_by_tier_prefix_and_keyspace() {
+        SeriesIndex index = newIndex();
+        index.set(labels("ks", "tbl", READS), 1.0);
+        index.set(labels("ks2", "tbl", WRITES), 2.0);
+        index.set(labels("", "", TIMEOUTS), 3.0);
+
+        assertEquals(Arrays.asList(TIMEOUTS), names(index.select(Optional.of(10000), Optional.empty(), Optional.empty())));
+        assertEquals(Arrays.asList(WRITES, READS), names(index.select(Optional.empty(), Optional.of("org:apache:cassandra:metrics:table:"), Optional.empty())));
+        assertEquals(Arrays.asList(WRITES), names(index.select(Optional.of(60000), Optional.empty(), Optional.of("ks2"))));
+        assertEquals(Arrays.asList(), names(index.select(Optional.of(10000), Optional.empty(), Optional.of("ks"))));
+        assertEquals(1.0, index.select(Optional.empty(), Optional.empty(), Optional.of("ks")).get(0).samples.get(0).value, 0.0);
+    }
+
+    @Test
+    public void test_removed_series_are_unindexed() {
+        SeriesIndex index = newIndex();
+        index.set(labels("ks", "tbl", READS), 1.0);
+        index.set(labels("ks2", "tbl", WRITES), 2.0);
+        index.remove(labels("ks", "tbl", READS));
+
+        assertEquals(Arrays.asList(WRITES), names(index.select(Optional.of(60000), Optional.empty(), Optional.empty())));
+        assertEquals(Arrays.asList(), names(index.select(Optional.empty(), Optional.of(READS), Optional.empty())));
+    }
+
+    @Test
+    public void test_retier_moves_the_series_to_their_new_tier_and_returns_the_unscraped_ones() {
+        Map<String, Integer> tiers = new HashMap<>();
+        tiers.put(READS, 60000);
+        tiers.put(WRITES, 60000);
+        tiers.put(TIMEOUTS, 10000);
+        SeriesIndex index = newIndex(tiers::get);
+        index.set(labels("ks", "tbl", READS), 1.0);
+        index.set(labels("ks2", "tbl", WRITES), 2.0);
+        index.set(labels("", "", TIMEOUTS), 3.0);
+
+        // The scrap frequencies were reloaded, timeouts are blacklisted now
+        tiers.put(READS, 10000);
+        tiers.put(TIMEOUTS, -1);
+        List<String[]> unscraped = index.retier();
+
+        assertEquals(1, unscraped.size());
+        assertArrayEquals(labels("", "", TIMEOUTS), unscraped.get(0));
+        assertEquals(Arrays.asList(READS), names(index.select(Optional.of(10000), Optional.empty(), Optional.empty())));
+        assertEquals(Arrays.asList(WRITES), names(index.select(Optional.of(60000), Optional.empty(), Optional.empty())));
+        assertEquals(1.0, index.select(Optional.of(10000), Optional.empty(), Optional.empty()).get(0).samples.get(0).value, 0.0);
+        assertEquals(2.0, index.select(Optional.of(60000), Optional.empty(), Optional.empty()).get(0).samples.get(0).value, 0.0);
+    }
+
+    @Test
+    public void test_structured_series_are_grouped_by_family() throws Exception {
+        Gauge gauge = Gauge.build().name("test_stats").help("test").labelNames("cluster", "datacenter", "keyspace", "table", "name").register(new CollectorRegistry());
+        StructuredName.Layout layout = StructuredName.Layout.of(new ObjectName("org.apache.cassandra.metrics:type=Table,keyspace=ks,scope=tbl,name=ReadLatency"));
+        SeriesIndex index = new SeriesIndex(gauge, Arrays.asList("cluster", "datacenter", "keyspace", "table", "name"), name -> 60000,
+                Optional.of(labels -> labels.get(4).startsWith("org:apache:cassandra:metrics:table:ks:tbl:readlatency:") ? layout.name(Arrays.asList("cluster", "datacenter", "keyspace", "table", "name"), labels, "count", false) : null));
+        index.set(labels("ks", "tbl", READS), 1.0);
+        index.set(labels("ks2", "tbl", WRITES), 2.0);
+
+        List<Collector.MetricFamilySamples> families = index.select(Optional.empty(), Optional.empty(), Optional.empty());
+        assertEquals(Arrays.asList("cassandra_table_readlatency", "test_stats"), families.stream().map(family -> family.name).collect(toList()));
+        assertEquals(Arrays.asList("cluster", "datacenter", "keyspace", "table", "attribute"), families.get(0).samples.get(0).labelNames);
+        assertEquals(Arrays.asList("cluster", "dc", "ks", "tbl", "count"), families.get(0).samples.get(0).labelValues);
+        assertEquals(WRITES, families.get(1).samples.get(0).labelValues.get(4));
+    }
+
+    @Test
+    public void test_written_lines_follow_a_structured_name_resolved_late() throws Exception {
+        Gauge gauge = Gauge.build().name("test_stats").help("test").labelNames("cluster", "datacenter", "keyspace", "table", "name").register(new CollectorRegistry());
+        StructuredName.Layout layout = StructuredName.Layout.of(new ObjectName("org.apache.cassandra.metrics:type=Table,keyspace=ks,scope=tbl,name=ReadLatency"));
+        // As for a series restored from a snapshot, whose MBean is only discovered later
+        AtomicBoolean discovered = new AtomicBoolean();
+        SeriesIndex index = new SeriesIndex(gauge, Arrays.asList("cluster", "datacenter", "keyspace", "table", "name"), name -> 60000,
+                Optional.of(labels -> discovered.get() ? layout.name(Arrays.asList("cluster", "datacenter", "keyspace", "table", "name"), labels, "count", false) : null));
+        index.set(labels("ks", "tbl", READS), 1.0);
+        assertEquals(textFormat(index), write(index, 0));
+
+        discovered.set(true);
+        assertEquals(textFormat(index), write(index, 0));
+        assertEquals(true, write(index, 0).contains("cassandra_table_readlatency{cluster=\"cluster\",datacenter=\"dc\",keyspace=\"ks\",table=\"tbl\",attribute=\"count\",} 1.0\n"));
+    }
+
+    @Test
+    public void test_written_lines_follow_the_values_in_the_text_format() throws Exception {
+        SeriesIndex index = newIndex();
+        index.set(labels("ks", "tbl", READS), 1.0);
+        index.set(labels("k\"s\\2", "t\nbl", WRITES), 2.0);
+        assertEquals(textFormat(index), write(index, 0));
+
+        index.set(labels("ks", "tbl", READS), Double.NaN);
+        index.set(labels("k\"s\\2", "t\nbl", WRITES), 1e-9);
+        assertEquals(textFormat(index), write(index, 0));
+    }
+
+    @Test
+    public void test_delta_only_holds_the_series_changed_since_a_generation() throws Exception {
+        SeriesIndex index = newIndex();
+        index.set(labels("ks", "tbl", READS), 1.0);
+        index.set(labels("ks2", "tbl", WRITES), 2.0);
+        index.publish();
+        long first = index.generation();
+
+        index.set(labels("ks", "tbl", READS), 1.0);
+        index.set(labels("ks2", "tbl", WRITES), 3.0);
+        index.set(labels("", "", TIMEOUTS), 0.0);
+        assertEquals(Arrays.asList(TIMEOUTS, WRITES), lineNames(write(index, first)));
+        index.publish();
+        assertEquals(Arrays.asList(), lineNames(write(index, index.generation())));
+
+        assertEquals(true, index.hasDeltaSince(first));
+        index.remove(labels("", "", TIMEOUTS));
+        index.publish();
+        // The removal cannot be told by a delta
+        assertEquals(false, index.hasDeltaSince(first));
+        assertEquals(true, index.hasDeltaSince(index.generation()));
+        assertEquals(false, index.hasDeltaSince(index.generation() + 1));
+    }
+
+    @Test
+    public void test_generations_of_the_exporter_before_a_restart_have_no_delta() throws Exception {
+        SeriesIndex before = newIndex();
+        before.set(labels("ks", "tbl", READS), 1.0);
+        before.publish();
+        before.publish();
+        long stale = before.generation();
+
+        Thread.sleep(10);
+        SeriesIndex restarted = newIndex();
+        restarted.set(labels("ks", "tbl", READS), 1.0);
+        restarted.publish();
+        restarted.publish();
+        restarted.publish();
+
+        assertEquals(false, restarted.hasDeltaSince(stale));
+        assertEquals(true, restarted.hasDeltaSince(restarted.generation()));
+        assertEquals(false, restarted.hasDeltaSince(0));
+    }
+
+    private static String textFormat(SeriesIndex index) throws Exception {
+        StringWriter writer = new StringWriter();
+        TextFormat.write004(writer, Collections.enumeration(index.select(Optional.empty(), Optional.empty(), Optional.empty())));
+        return writer.toString();
+    }
+
+    private static String write(SeriesIndex index, long since) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        index.write(out, Optional.empty(), Optional.empty(), Optional.empty(), since, name -> true);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static List<String> lineNames(String page) {
+        return Arrays.stream(page.split("\n")).filter(line -> line.startsWith("test_stats{"))
+                .map(line -> line.substring(line.indexOf("name=\"") + 6, line.indexOf("\",}"))).sorted().collect(toList());
+    }
+
+    private static SeriesIndex newIndex() {
+        return newIndex(name -> name.contains("clientrequest") ? 10000 : 60000);
+    }
+
+    private static SeriesIndex newIndex(ToIntFunction<String> tierOf) {
+        Gauge gauge = Gauge.build().name("test_stats").help("test").labelNames("cluster", "datacenter", "keyspace", "table", "name").register(new CollectorRegistry());
+        return new SeriesIndex(gauge, Arrays.asList("cluster", "datacenter", "keyspace", "table", "name"), tierOf);
+    }
+
+    private static String[] labels(String keyspace, String table, String name) {
+        return new String[]{"cluster", "dc", keyspace, table, name};
+    }
+
+    private static List<String> names(List<Collector.MetricFamilySamples> families) {
+        return families.stream().flatMap(family -> family.samples.stream()).map(sample -> sample.labelValues.get(4)).sorted().collect(toList());
+    }
+}
@@ -0,0 +1,40 @@
+package com.criteo.nosql.cassandra.exporter;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StartupTest {
+
+    @Test
+    public void test_ready_once_the_fastest_tier_is_complete() {
+        Startup startup = new Startup();
+        startup.completed(Startup.Phase.NODE_INFO);
+        startup.completed(Startup.Phase.NODE_MBEANS);
+        startup.completed(Startup.Phase.TABLE_DISCOVERY);
+        assertFalse(startup.isReady());
+
+        startup.completed(Startup.Phase.FASTEST_TIER);
+        assertTrue(startup.isReady());
+        assertEquals(1.0, CollectorRegistry.defaultRegistry.getSampleValue("cassandra_exporter_ready"), 0);
+        Double discovery = CollectorRegistry.defaultRegistry.getSampleValue("cassandra_exporter_startup_phase_seconds",
+                new String[]{"phase"}, new String[]{"table_discovery"});
+        assertTrue(discovery != null && discovery >= 0);
+    }
+
+    @Test
+    public void test_phases_are_only_timed_the_first_time() throws Exception {
+        Startup startup = new Startup();
+        startup.completed(Startup.Phase.NODE_INFO);
+        Double first = CollectorRegistry.defaultRegistry.getSampleValue("cassandra_exporter_startup_phase_seconds",
+                new String[]{"phase"}, new String[]{"node_info"});
+
+        Thread.sleep(20);
+        startup.completed(Startup.Phase.NODE_INFO);
+        assertEquals(first, CollectorRegistry.defaultRegistry.getSampleValue("cassandra_exporter_startup_phase_seconds",
+                new String[]{"phase"}, new String[]{"node_info"}));
+    }
+}
@@ -0,0 +1,72 @@
+package com.criteo.nosql.cassandra.exporter;
+
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class StructuredNameTest {
+
+    private static final List<String> LABEL_NAMES = Arrays.asList("cluster", "datacenter", "keyspace", "table", "name", "env");
+
+    @Test
+    public void test_table_metrics_are_labeled_with_their_keyspace_and_table_only_once() throws Exception {
+        StructuredName.Layout layout = StructuredName.Layout.of(new ObjectName("org.apache.cassandra.metrics:type=Table,keyspace=ks,scope=tbl,name=ReadLatency"));
+
+        StructuredName known = layout.name(LABEL_NAMES, labels("ks", "tbl", "org:apache:cassandra:metrics:table:ks:tbl:readlatency:count"), "count", false);
+        assertEquals("cassandra_table_readlatency", known.family);
+        assertEquals(Arrays.asList("cluster", "datacenter", "keyspace", "table", "attribute", "env"), known.labelNames);
+        assertEquals(Arrays.asList("c", "dc", "ks", "tbl", "count", "prod"), known.labelValues);
+
+        // Tables unknown to the node are not labeled as such, their key properties still tell them apart
+        StructuredName unknown = layout.name(LABEL_NAMES, labels("", "", "org:apache:cassandra:metrics:table:ks:tbl:readlatency:count"), "count", false);
+        assertEquals(Arrays.asList("cluster", "datacenter", "keyspace", "scope", "attribute", "env"), unknown.labelNames);
+        assertEquals(Arrays.asList("c", "dc", "ks", "tbl", "count", "prod"), unknown.labelValues);
+
+        StructuredName other = StructuredName.Layout.of(new ObjectName("org.apache.cassandra.metrics:type=Table,keyspace=ks,scope=tbl2,name=WriteLatency"))
+                .name(LABEL_NAMES, labels("ks", "tbl2", "org:apache:cassandra:metrics:table:ks:tbl2:writelatency:50thpercentile"), "50thpercentile", false);
+        assertSame(known.labelNames, other.labelNames);
+
+        // Rollups only have the keyspace or table labels of their level
+        StructuredName rollup = layout.name(LABEL_NAMES, labels("ks", "", "org:apache:cassandra:metrics:table:ks:readlatency:count"), "count", true);
+        assertEquals("cassandra_table_readlatency", rollup.family);
+        assertEquals(Arrays.asList("cluster", "datacenter", "keyspace", "attribute", "env"), rollup.labelNames);
+
+        // Or it would get the labels of the global metric of Cassandra
+        StructuredName global = StructuredName.Layout.of(new ObjectName("org.apache.cassandra.metrics:type=Table,name=ReadLatency"))
+                .name(LABEL_NAMES, labels("", "", "org:apache:cassandra:metrics:table:readlatency:count"), "count", false);
+        StructuredName clusterRollup = layout.name(LABEL_NAMES, labels("", "", "org:apache:cassandra:metrics:table:all-keyspaces:readlatency:count"), "count", true);
+        assertEquals(global.family, clusterRollup.family);
+        assertEquals(Arrays.asList("cluster", "datacenter", "attribute", "env"), global.labelNames);
+        assertEquals(Arrays.asList("cluster", "datacenter", "keyspace", "attribute", "env"), clusterRollup.labelNames);
+        assertEquals(Arrays.asList("c", "dc", Aggregator.ALL_KEYSPACES, "count", "prod"), clusterRollup.labelValues);
+    }
+
+    @Test
+    public void test_other_key_properties_are_labels() throws Exception {
+        StructuredName clientRequest = StructuredName.Layout.of(new ObjectName("org.apache.cassandra.metrics:type=ClientRequest,scope=Read,name=Latency"))
+                .name(LABEL_NAMES, labels("", "", "org:apache:cassandra:metrics:clientrequest:read:latency:count"), "count", false);
+        assertEquals("cassandra_clientrequest_latency", clientRequest.family);
+        assertEquals(Arrays.asList("cluster", "datacenter", "scope", "attribute", "env"), clientRequest.labelNames);
+        assertEquals(Arrays.asList("c", "dc", "read", "count", "prod"), clientRequest.labelValues);
+
+        StructuredName gc = StructuredName.Layout.of(new ObjectName("java.lang:type=GarbageCollector,name=G1 Young Generation"))
+                .name(LABEL_NAMES, labels("", "", "java:lang:garbagecollector:g1_young_generation:collectioncount"), "collectioncount", false);
+        assertEquals("jvm_garbagecollector", gc.family);
+        assertEquals(Arrays.asList("cluster", "datacenter", "name", "attribute", "env"), gc.labelNames);
+        assertEquals("g1 young generation", gc.labelValues.get(2));
+
+        StructuredName pending = StructuredName.Layout.of(new ObjectName("org.apache.cassandra.metrics:type=Compaction,name=PendingTasksByTableName"))
+                .name(LABEL_NAMES, labels("ks", "tbl", "org:apache:cassandra:metrics:compaction:pendingtasksbytablename:ks:tbl:value"), "ks:tbl:value", false);
+        assertEquals("cassandra_compaction_pendingtasksbytablename", pending.family);
+        assertEquals(Arrays.asList("c", "dc", "ks", "tbl", "value", "prod"), pending.labelValues);
+    }
+
+    private static List<String> labels(String keyspace, String table, String name) {
+        return Arrays.asList("c", "dc", keyspace, table, name, "prod");
+    }
+}
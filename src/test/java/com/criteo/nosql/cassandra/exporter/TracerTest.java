@@ -0,0 +1,18 @@
+package com.criteo.nosql.cassandra.exporter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertSame;
+
+public class TracerTest {
+
+    @Test
+    public void test_spans_do_nothing_without_flight_recorder() {
+        Tracer tracer = Tracer.Factory.create("jdk.jfr.MissingFlightRecorder");
+        for (Tracer.Kind kind : Tracer.Kind.values()) {
+            Tracer.Span span = tracer.start(kind);
+            assertSame(Tracer.Span.NONE, span);
+            span.end("subject", "detail", 1);
+        }
+    }
+}